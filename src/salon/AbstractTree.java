@@ -1,14 +1,22 @@
 package salon;
 
 import java.util.Comparator;
+import java.util.List;
 import java.util.Map;
 import java.util.function.BiFunction;
 import java.util.function.Function;
 
 abstract class AbstarctTree<K extends Comparable<? super K>, S> {
   private Map<K, S> primaryStore;
+  // Identifies the tree in flight recorder events
+  private String name;
 
   AbstarctTree(Map<K, S> primaryStore) {
+    this(null, primaryStore);
+  }
+
+  AbstarctTree(String name, Map<K, S> primaryStore) {
+    this.name = name == null ? getClass().getSimpleName() : name;
     this.primaryStore = primaryStore;
   }
 
@@ -16,27 +24,53 @@ abstract class AbstarctTree<K extends Comparable<? super K>, S> {
     return primaryStore;
   }
 
+  public String getName() {
+    return name;
+  }
+
   public <KK extends Comparable<? super KK>> IndexTree<K, KK, S> sort(
     Function<Map.Entry<K, S>, KK> keyExtractor) {
-    return MapUtilities.sort(primaryStore, keyExtractor, Comparator.naturalOrder());
+    return sort(keyExtractor, Comparator.naturalOrder());
   }
 
   public <KK extends Comparable<? super KK>> IndexTree<K, KK, S> sort(
     Function<Map.Entry<K, S>, KK> keyExtractor, Comparator<? super String> comparator) {
-    return MapUtilities.sort(primaryStore, keyExtractor, comparator);
+    SortEvent event = new SortEvent();
+    event.start(name);
+    IndexTree<K, KK, S> index = MapUtilities.sort(primaryStore, keyExtractor, comparator);
+    event.finish(primaryStore.size());
+    return index;
+  }
+
+  public List<S> topK(int k, Comparator<? super S> comparator) {
+    return MapUtilities.topK(primaryStore.values(), k, comparator);
+  }
+
+  public List<S> bottomK(int k, Comparator<? super S> comparator) {
+    return MapUtilities.bottomK(primaryStore.values(), k, comparator);
+  }
+
+  // Start a single pass query over the values, see Query
+  public Query<S> query() {
+    return new Query<>(primaryStore.values());
   }
 
   public <GK extends Comparable<? super GK>, R> Aggregate<GK, S, R> aggregate(
     R startValue, BiFunction<S, Integer, GK> getGroupByKey, BiFunction<R, S, R> action) {
-    return MapUtilities.aggregate(
-      primaryStore, startValue, getGroupByKey, (a, b, c) -> action.apply(a, b));
+    return aggregate(startValue, getGroupByKey, (a, b, c) -> action.apply(a, b));
   }
 
   public <GK extends Comparable<? super GK>, R> Aggregate<GK, S, R> aggregate(
     R startValue,
     BiFunction<S, Integer, GK> getGroupByKey,
     TriFunction<R, S, Aggregate<GK, S, R>, R> action) {
-    return MapUtilities.aggregate(primaryStore, startValue, getGroupByKey, action);
+    AggregateEvent event = new AggregateEvent();
+    event.start(name);
+    Aggregate<GK, S, R> result =
+      MapUtilities.aggregate(primaryStore, startValue, getGroupByKey, action);
+    event.finish(primaryStore.size(), result.getPrimaryStore().size());
+    LargestAggregates.record(name, result);
+    return result;
   }
 
   @Override
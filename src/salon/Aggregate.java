@@ -77,6 +77,32 @@ class Aggregate<GK extends Comparable<? super GK>, V, R> extends AbstarctTree<GK
     return result;
   }
 
+  // Values grouped so far, each is counted once for every group it was put in
+  public long valueCount() {
+    long count = 0;
+    for (Result<V, R> result : getPrimaryStore().values()) {
+      count += result.getValues().size();
+    }
+    return count;
+  }
+
+  // Includes nested aggregates but not the grouped values, which belong to the tree
+  public long estimatedBytes() {
+    long bytes = MemoryEstimator.hashMap(getPrimaryStore().size());
+    for (Result<V, R> result : getPrimaryStore().values()) {
+      // The group key, the result, its list and the list's array
+      bytes += MemoryEstimator.BOXED + 24 + 24 + MemoryEstimator.array(
+        result.getValues().size(), MemoryEstimator.REFERENCE);
+      Object accumulator = result.getAccumulator();
+      if (accumulator instanceof Aggregate) {
+        bytes += ((Aggregate<?, ?, ?>) accumulator).estimatedBytes();
+      } else if (accumulator != null) {
+        bytes += MemoryEstimator.BOXED;
+      }
+    }
+    return bytes;
+  }
+
   public Result<V, R> put(V value) {
     return put(value, null);
   }
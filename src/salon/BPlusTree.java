@@ -0,0 +1,340 @@
+package salon;
+
+import java.util.AbstractCollection;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Sorted map of int keys held in a B+tree with wide nodes, for use as the primary store of a tree
+ * keyed by generated ids.
+ *
+ * <p>Keys are stored unboxed in an int array per node and the leaves are linked so iterating in
+ * key order reads each leaf's arrays front to back. A TreeMap needs a node object with three
+ * pointers and a boxed key for every entry, where this needs about 8 bytes per entry.
+ *
+ * <p>Ids from the nextXId counters always go after the largest key, so that case skips the
+ * descent and appends to the last leaf. When it's full it is left full and the new key starts a
+ * new leaf rather than splitting it in half, keeping the leaves packed. Removing a key never
+ * merges nodes, which is fine as the salon never deletes anything.
+ *
+ * @param <V> the type of values in the map
+ */
+class BPlusTree<V> extends AbstractMap<Integer, V> {
+  // Most keys a node holds
+  private static final int ORDER = 64;
+  private Node root;
+  private final Leaf first;
+  private Leaf last;
+  private int size = 0;
+  // Set by insert when a node splits and by put when a key is replaced
+  private int splitKey;
+  private V replaced;
+
+  private abstract static class Node {
+    int[] keys = new int[ORDER];
+    int size = 0;
+  }
+
+  private static final class Leaf extends Node {
+    Object[] values = new Object[ORDER];
+    Leaf next;
+  }
+
+  // keys[i] is the smallest key under children[i + 1]
+  private static final class Branch extends Node {
+    Node[] children = new Node[ORDER + 1];
+  }
+
+  BPlusTree() {
+    first = new Leaf();
+    last = first;
+    root = first;
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  // Walks the nodes rather than the entries, each node holds up to ORDER of them
+  public long estimatedBytes() {
+    return MemoryEstimator.shallow(BPlusTree.class) + estimatedBytes(root);
+  }
+
+  private static long estimatedBytes(Node node) {
+    long keys = MemoryEstimator.array(ORDER, 4);
+    if (node instanceof Leaf) {
+      return MemoryEstimator.shallow(Leaf.class)
+        + keys
+        + MemoryEstimator.array(ORDER, MemoryEstimator.REFERENCE);
+    }
+    Branch branch = (Branch) node;
+    long bytes =
+      MemoryEstimator.shallow(Branch.class)
+        + keys
+        + MemoryEstimator.array(ORDER + 1, MemoryEstimator.REFERENCE);
+    for (int i = 0; i <= branch.size; i++) {
+      bytes += estimatedBytes(branch.children[i]);
+    }
+    return bytes;
+  }
+
+  @Override
+  public V get(Object key) {
+    if (!(key instanceof Integer)) {
+      return null;
+    }
+    int id = (Integer) key;
+    Leaf leaf = findLeaf(id);
+    int position = Arrays.binarySearch(leaf.keys, 0, leaf.size, id);
+    return position < 0 ? null : value(leaf, position);
+  }
+
+  @Override
+  public boolean containsKey(Object key) {
+    if (!(key instanceof Integer)) {
+      return false;
+    }
+    int id = (Integer) key;
+    Leaf leaf = findLeaf(id);
+    return Arrays.binarySearch(leaf.keys, 0, leaf.size, id) >= 0;
+  }
+
+  @Override
+  public V put(Integer key, V value) {
+    int id = key;
+    // New ids go after every other key so they can go straight on the end
+    if (last.size > 0 && last.size < ORDER && id > last.keys[last.size - 1]) {
+      last.keys[last.size] = id;
+      last.values[last.size++] = value;
+      size++;
+      return null;
+    }
+    replaced = null;
+    Node right = insert(root, id, value);
+    if (right != null) {
+      Branch newRoot = new Branch();
+      newRoot.keys[0] = splitKey;
+      newRoot.children[0] = root;
+      newRoot.children[1] = right;
+      newRoot.size = 1;
+      root = newRoot;
+    }
+    return replaced;
+  }
+
+  @Override
+  public V remove(Object key) {
+    if (!(key instanceof Integer)) {
+      return null;
+    }
+    int id = (Integer) key;
+    Leaf leaf = findLeaf(id);
+    int position = Arrays.binarySearch(leaf.keys, 0, leaf.size, id);
+    if (position < 0) {
+      return null;
+    }
+    V value = value(leaf, position);
+    int moved = leaf.size - position - 1;
+    System.arraycopy(leaf.keys, position + 1, leaf.keys, position, moved);
+    System.arraycopy(leaf.values, position + 1, leaf.values, position, moved);
+    leaf.values[--leaf.size] = null;
+    size--;
+    return value;
+  }
+
+  @Override
+  public void clear() {
+    first.keys = new int[ORDER];
+    first.values = new Object[ORDER];
+    first.size = 0;
+    first.next = null;
+    last = first;
+    root = first;
+    size = 0;
+  }
+
+  @Override
+  public Set<Map.Entry<Integer, V>> entrySet() {
+    return new AbstractSet<>() {
+      @Override
+      public Iterator<Map.Entry<Integer, V>> iterator() {
+        return new LeafIterator<>() {
+          @Override
+          Map.Entry<Integer, V> read(Leaf leaf, int position) {
+            return new AbstractMap.SimpleImmutableEntry<>(leaf.keys[position], value(leaf, position));
+          }
+        };
+      }
+
+      @Override
+      public int size() {
+        return size;
+      }
+    };
+  }
+
+  // Reads the values straight from the leaves without making an entry for each one
+  @Override
+  public Collection<V> values() {
+    return new AbstractCollection<>() {
+      @Override
+      public Iterator<V> iterator() {
+        return new LeafIterator<>() {
+          @Override
+          V read(Leaf leaf, int position) {
+            return value(leaf, position);
+          }
+        };
+      }
+
+      @Override
+      public int size() {
+        return size;
+      }
+    };
+  }
+
+  // Walks the linked leaves in key order, skipping any emptied by removes
+  private abstract class LeafIterator<T> implements Iterator<T> {
+    private Leaf leaf = first;
+    private int position = 0;
+
+    abstract T read(Leaf leaf, int position);
+
+    @Override
+    public boolean hasNext() {
+      while (leaf != null && position >= leaf.size) {
+        leaf = leaf.next;
+        position = 0;
+      }
+      return leaf != null;
+    }
+
+    @Override
+    public T next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      return read(leaf, position++);
+    }
+  }
+
+  private Leaf findLeaf(int id) {
+    Node node = root;
+    while (node instanceof Branch) {
+      node = ((Branch) node).children[child(node, id)];
+    }
+    return (Leaf) node;
+  }
+
+  // Index of the child that holds a key, the number of separators not greater than it
+  private static int child(Node node, int id) {
+    int position = Arrays.binarySearch(node.keys, 0, node.size, id);
+    return position >= 0 ? position + 1 : -position - 1;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <V> V value(Leaf leaf, int position) {
+    return (V) leaf.values[position];
+  }
+
+  /**
+   * Inserts a key under a node.
+   *
+   * @return the new right sibling if the node had to split, with its smallest key in splitKey, or
+   *     null if it didn't
+   */
+  private Node insert(Node node, int id, V value) {
+    if (node instanceof Leaf) {
+      return insertIntoLeaf((Leaf) node, id, value);
+    }
+    Branch branch = (Branch) node;
+    int index = child(branch, id);
+    Node right = insert(branch.children[index], id, value);
+    if (right == null) {
+      return null;
+    }
+    int key = splitKey;
+    if (branch.size < ORDER) {
+      int moved = branch.size - index;
+      System.arraycopy(branch.keys, index, branch.keys, index + 1, moved);
+      System.arraycopy(branch.children, index + 1, branch.children, index + 2, moved);
+      branch.keys[index] = key;
+      branch.children[index + 1] = right;
+      branch.size++;
+      return null;
+    }
+    // Split a full branch, the middle key moves up rather than being copied
+    int[] keys = new int[ORDER + 1];
+    Node[] children = new Node[ORDER + 2];
+    System.arraycopy(branch.keys, 0, keys, 0, index);
+    System.arraycopy(branch.keys, index, keys, index + 1, ORDER - index);
+    keys[index] = key;
+    System.arraycopy(branch.children, 0, children, 0, index + 1);
+    System.arraycopy(branch.children, index + 1, children, index + 2, ORDER - index);
+    children[index + 1] = right;
+    // Appending leaves this branch full and starts the new one with just the new child
+    int middle = index == ORDER ? ORDER : (ORDER + 1) / 2;
+    Branch sibling = new Branch();
+    sibling.size = ORDER - middle;
+    System.arraycopy(keys, middle + 1, sibling.keys, 0, sibling.size);
+    System.arraycopy(children, middle + 1, sibling.children, 0, sibling.size + 1);
+    branch.keys = Arrays.copyOf(keys, ORDER);
+    branch.children = Arrays.copyOf(children, ORDER + 1);
+    Arrays.fill(branch.children, middle + 1, ORDER + 1, null);
+    branch.size = middle;
+    splitKey = keys[middle];
+    return sibling;
+  }
+
+  private Node insertIntoLeaf(Leaf leaf, int id, V value) {
+    int position = Arrays.binarySearch(leaf.keys, 0, leaf.size, id);
+    if (position >= 0) {
+      replaced = value(leaf, position);
+      leaf.values[position] = value;
+      return null;
+    }
+    position = -position - 1;
+    size++;
+    if (leaf.size < ORDER) {
+      insertAt(leaf, position, id, value);
+      return null;
+    }
+    Leaf sibling = new Leaf();
+    // Appending leaves this leaf full and starts the new one with just the new key
+    int middle = position == ORDER ? ORDER : ORDER / 2;
+    sibling.size = ORDER - middle;
+    System.arraycopy(leaf.keys, middle, sibling.keys, 0, sibling.size);
+    System.arraycopy(leaf.values, middle, sibling.values, 0, sibling.size);
+    Arrays.fill(leaf.values, middle, ORDER, null);
+    leaf.size = middle;
+    if (position <= middle && middle < ORDER) {
+      insertAt(leaf, position, id, value);
+    } else {
+      insertAt(sibling, position - middle, id, value);
+    }
+    sibling.next = leaf.next;
+    leaf.next = sibling;
+    if (leaf == last) {
+      last = sibling;
+    }
+    splitKey = sibling.keys[0];
+    return sibling;
+  }
+
+  private static void insertAt(Leaf leaf, int position, int id, Object value) {
+    int moved = leaf.size - position;
+    System.arraycopy(leaf.keys, position, leaf.keys, position + 1, moved);
+    System.arraycopy(leaf.values, position, leaf.values, position + 1, moved);
+    leaf.keys[position] = id;
+    leaf.values[position] = value;
+    leaf.size++;
+  }
+}
@@ -0,0 +1,204 @@
+package salon;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.function.IntUnaryOperator;
+
+// One day of scheduled bookings along with rollups that are kept up to date as bookings are added
+// so reports can combine the rollups instead of going back over the bookings
+class BookingPartition {
+  private final LocalDate day;
+  private final List<Booking> bookings = new ArrayList<>();
+  // Revenue taken for each service on this day by service id
+  private final IdTotals serviceRevenue = new IdTotals();
+  // The number of bookings each stylist had on this day by stylist id
+  private final IdTotals stylistBookings = new IdTotals();
+
+  BookingPartition(LocalDate day) {
+    this.day = day;
+  }
+
+  public LocalDate getDay() {
+    return day;
+  }
+
+  public List<Booking> getBookings() {
+    return bookings;
+  }
+
+  public IdTotals getServiceRevenue() {
+    return serviceRevenue;
+  }
+
+  public IdTotals getStylistBookings() {
+    return stylistBookings;
+  }
+
+  // The rollups are arrays indexed by id so adding a booking doesn't box or allocate
+  public void add(Booking booking, IntUnaryOperator serviceCost) {
+    bookings.add(booking);
+    for (int i = 0; i < booking.serviceIdCount(); i++) {
+      int serviceId = booking.serviceIdAt(i);
+      serviceRevenue.add(serviceId, serviceCost.applyAsInt(serviceId));
+    }
+    stylistBookings.add(booking.getStylistId(), 1);
+  }
+
+  // Takes a booking back out of the partition and its rollups
+  public void remove(Booking booking, IntUnaryOperator serviceCost) {
+    if (!bookings.remove(booking)) {
+      return;
+    }
+    for (int i = 0; i < booking.serviceIdCount(); i++) {
+      int serviceId = booking.serviceIdAt(i);
+      serviceRevenue.add(serviceId, -serviceCost.applyAsInt(serviceId));
+    }
+    stylistBookings.add(booking.getStylistId(), -1);
+  }
+
+  @Override
+  public String toString() {
+    return "Partition( " + day + ", " + bookings.size() + " bookings )";
+  }
+}
+
+
+/**
+ * Scheduled bookings partitioned by the day they start on.
+ *
+ * <p>Range queries only visit the partitions inside the range and combine their pre-computed
+ * rollups, so the cost depends on the number of days asked for rather than the whole booking
+ * history. Unscheduled bookings have no day and are not partitioned.
+ */
+class BookingPartitions {
+  private final TreeMap<LocalDate, BookingPartition> partitions = new TreeMap<>();
+
+  /**
+   * Adds a scheduled booking to the partition for its start day.
+   *
+   * @param booking the booking to add
+   * @param serviceCost what the booking was charged for a service, by service id
+   */
+  public void add(Booking booking, IntUnaryOperator serviceCost) {
+    LocalDate day = booking.getStartTime().toLocalDate();
+    partitions.computeIfAbsent(day, BookingPartition::new).add(booking, serviceCost);
+  }
+
+  public void remove(Booking booking, IntUnaryOperator serviceCost) {
+    LocalDate day = booking.getStartTime().toLocalDate();
+    BookingPartition partition = partitions.get(day);
+    if (partition != null) {
+      partition.remove(booking, serviceCost);
+      if (partition.getBookings().isEmpty()) {
+        partitions.remove(day);
+      }
+    }
+  }
+
+  /**
+   * Gets the partitions between two days inclusive, pruning every partition outside the range.
+   *
+   * @param from the first day, or null for no lower bound
+   * @param to the last day, or null for no upper bound
+   * @return the partitions in day order, none if from is after to
+   */
+  public Collection<BookingPartition> range(LocalDate from, LocalDate to) {
+    if (from != null && to != null && from.isAfter(to)) {
+      return List.of();
+    }
+    NavigableMap<LocalDate, BookingPartition> inRange = partitions;
+    if (from != null) {
+      inRange = inRange.tailMap(from, true);
+    }
+    if (to != null) {
+      inRange = inRange.headMap(to, true);
+    }
+    return inRange.values();
+  }
+
+  /**
+   * Combines the service revenue rollups of the partitions between two days inclusive.
+   *
+   * @param from the first day, or null for no lower bound
+   * @param to the last day, or null for no upper bound
+   * @return a map of service id to revenue ordered by service id
+   */
+  public Map<Integer, Integer> serviceRevenue(LocalDate from, LocalDate to) {
+    IdTotals result = new IdTotals();
+    for (BookingPartition partition : range(from, to)) {
+      result.addAll(partition.getServiceRevenue());
+    }
+    return result.toMap();
+  }
+
+  /**
+   * Combines the bookings per stylist rollups of the partitions between two days inclusive.
+   *
+   * @param from the first day, or null for no lower bound
+   * @param to the last day, or null for no upper bound
+   * @return a map of stylist id to number of bookings ordered by stylist id
+   */
+  public Map<Integer, Integer> stylistBookings(LocalDate from, LocalDate to) {
+    IdTotals result = new IdTotals();
+    for (BookingPartition partition : range(from, to)) {
+      result.addAll(partition.getStylistBookings());
+    }
+    return result.toMap();
+  }
+
+  public int size() {
+    return partitions.size();
+  }
+}
+
+
+/**
+ * Running int totals keyed by id.
+ *
+ * <p>Service and stylist ids are handed out in order from a small number, so the totals are kept
+ * in an array indexed by id that grows to the largest id seen. Adding to a total doesn't box the
+ * id or the amount or allocate anything unless the array has to grow.
+ */
+class IdTotals {
+  private int[] totals = new int[8];
+
+  public void add(int id, int amount) {
+    if (id >= totals.length) {
+      totals = Arrays.copyOf(totals, Math.max(id + 1, totals.length * 2));
+    }
+    totals[id] += amount;
+  }
+
+  public int get(int id) {
+    return id < totals.length ? totals[id] : 0;
+  }
+
+  public void addAll(IdTotals other) {
+    for (int id = other.totals.length - 1; id >= 0; id--) {
+      if (other.totals[id] != 0) {
+        add(id, other.totals[id]);
+      }
+    }
+  }
+
+  /**
+   * Copies the totals out for reports.
+   *
+   * @return a map of id to total ordered by id, leaving out totals of zero
+   */
+  public Map<Integer, Integer> toMap() {
+    Map<Integer, Integer> map = new TreeMap<>();
+    for (int id = 0; id < totals.length; id++) {
+      if (totals[id] != 0) {
+        map.put(id, totals[id]);
+      }
+    }
+    return map;
+  }
+}
@@ -0,0 +1,192 @@
+package salon;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Takes bookings from any number of threads and adds them on a single writer thread in small
+ * batches.
+ *
+ * <p>Submitting only puts the request on a bounded ring buffer and returns a future of the new
+ * booking's id, so kiosks and online bookings don't wait for the indexes, totals and log to be
+ * updated. The writer takes whatever has queued up, to at most MAX_BATCH requests, and adds it
+ * with one call to addBookings, so a burst shares one transaction and one flush of the mutation
+ * log. The log is written inside the transaction, so a rejected batch has left nothing behind and
+ * its requests are added again one at a time so a bad request only fails its own future.
+ *
+ * <p>The writer holds the SalonData's lock while it adds a batch, the same lock the command loop
+ * and the log follower hold. When the buffer is full submit waits on that lock for the writer to
+ * finish a batch. Waiting gives the lock up, so a thread that already holds it, like the command
+ * loop, can submit and sync without stopping the writer.
+ */
+class BookingQueue {
+  // Most bookings added in one transaction
+  static final int MAX_BATCH = 256;
+
+  private static final class Pending {
+    private final BookingRequest request;
+    private final CompletableFuture<Integer> bookingId = new CompletableFuture<>();
+
+    Pending(BookingRequest request) {
+      this.request = request;
+    }
+  }
+
+  private final SalonData salonData;
+  private final RingBuffer<Pending> buffer;
+  private final AtomicLong submitted = new AtomicLong();
+  // Only changed by the writer while it holds the SalonData's lock
+  private final AtomicLong completed = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+  private final AtomicLong batches = new AtomicLong();
+  private volatile Thread writer;
+  private volatile boolean idle = false;
+
+  BookingQueue(SalonData salonData, int capacity) {
+    this.salonData = salonData;
+    this.buffer = new RingBuffer<>(capacity);
+  }
+
+  /**
+   * Queues a booking, waiting for room if the queue is full.
+   *
+   * @param request the booking to add with its stylist already chosen
+   * @return the id of the booking once it's added, or the reason it was rejected
+   */
+  public CompletableFuture<Integer> submit(BookingRequest request) {
+    Thread thread = start();
+    Pending pending = new Pending(request);
+    // Counted before it's queued so a sync that starts once it's queued always waits for it
+    submitted.incrementAndGet();
+    if (!buffer.offer(pending)) {
+      synchronized (salonData) {
+        while (!buffer.offer(pending)) {
+          LockSupport.unpark(thread);
+          waitForBatch();
+        }
+      }
+    }
+    if (idle) {
+      LockSupport.unpark(thread);
+    }
+    return pending.bookingId;
+  }
+
+  // Waits until every booking submitted before the call has been added or rejected
+  public void sync() {
+    long target = submitted.get();
+    synchronized (salonData) {
+      while (completed.get() < target) {
+        LockSupport.unpark(writer);
+        waitForBatch();
+      }
+    }
+  }
+
+  public long getSubmitted() {
+    return submitted.get();
+  }
+
+  public long getCompleted() {
+    return completed.get();
+  }
+
+  public long getFailed() {
+    return failed.get();
+  }
+
+  public long getBatches() {
+    return batches.get();
+  }
+
+  private Thread start() {
+    Thread thread = writer;
+    if (thread == null) {
+      synchronized (this) {
+        if (writer == null) {
+          writer = new Thread(this::write, "salon-booking-writer");
+          // Don't keep the JVM alive once the command line exits
+          writer.setDaemon(true);
+          writer.start();
+        }
+        thread = writer;
+      }
+    }
+    return thread;
+  }
+
+  private void write() {
+    List<Pending> batch = new ArrayList<>(MAX_BATCH);
+    while (true) {
+      Pending pending = buffer.poll();
+      if (pending == null) {
+        // Check again after saying we're idle so a submit in between isn't missed
+        idle = true;
+        pending = buffer.poll();
+        if (pending == null) {
+          LockSupport.park(this);
+          idle = false;
+          continue;
+        }
+        idle = false;
+      }
+      do {
+        batch.add(pending);
+      } while (batch.size() < MAX_BATCH && (pending = buffer.poll()) != null);
+      add(batch);
+      batch.clear();
+    }
+  }
+
+  private void add(List<Pending> batch) {
+    List<BookingRequest> requests = new ArrayList<>(batch.size());
+    for (Pending pending : batch) {
+      requests.add(pending.request);
+    }
+    // A booking for each request, or why it was rejected
+    Object[] outcomes = new Object[batch.size()];
+    synchronized (salonData) {
+      try {
+        List<Booking> bookings = salonData.addBookings(requests);
+        for (int i = 0; i < outcomes.length; i++) {
+          outcomes[i] = bookings.get(i);
+        }
+      } catch (RuntimeException e) {
+        // Nothing from the batch was committed or logged so each request can be tried on its own
+        for (int i = 0; i < outcomes.length; i++) {
+          try {
+            outcomes[i] = salonData.addBookings(List.of(requests.get(i))).get(0);
+          } catch (RuntimeException rejected) {
+            outcomes[i] = rejected;
+          }
+        }
+      }
+    }
+    // Completed outside the lock so code waiting on a future can't hold up the next batch
+    for (int i = 0; i < outcomes.length; i++) {
+      if (outcomes[i] instanceof Booking) {
+        batch.get(i).bookingId.complete(((Booking) outcomes[i]).getBookingId());
+      } else {
+        failed.incrementAndGet();
+        batch.get(i).bookingId.completeExceptionally((RuntimeException) outcomes[i]);
+      }
+    }
+    batches.incrementAndGet();
+    synchronized (salonData) {
+      completed.addAndGet(batch.size());
+      salonData.notifyAll();
+    }
+  }
+
+  private void waitForBatch() {
+    try {
+      salonData.wait();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while waiting for the booking queue", e);
+    }
+  }
+}
@@ -0,0 +1,264 @@
+package salon;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A change made to a tree, given to the listeners subscribed to it.
+ *
+ * <p>Entities are updated in place so for an update the old and new value are usually the same
+ * object, and by the time a listener sees the event it may have changed again. Listeners that
+ * need the state at the time of the change should read it from the event's key and type rather
+ * than compare the two values.
+ *
+ * @param <K> the type of primary keys in the tree
+ * @param <V> the type of values in the tree
+ */
+class ChangeEvent<K, V> {
+  enum Type {
+    INSERT,
+    UPDATE,
+    DELETE
+  }
+
+  private final Type type;
+  private final K key;
+  private final V oldValue;
+  private final V newValue;
+
+  ChangeEvent(K key, V oldValue, V newValue) {
+    this.type = oldValue == null ? Type.INSERT : newValue == null ? Type.DELETE : Type.UPDATE;
+    this.key = key;
+    this.oldValue = oldValue;
+    this.newValue = newValue;
+  }
+
+  public Type getType() {
+    return type;
+  }
+
+  public K getKey() {
+    return key;
+  }
+
+  // Null for inserts
+  public V getOldValue() {
+    return oldValue;
+  }
+
+  // Null for deletes
+  public V getNewValue() {
+    return newValue;
+  }
+
+  @Override
+  public String toString() {
+    return type + " " + key;
+  }
+}
+
+
+@FunctionalInterface
+interface ChangeListener<K, V> {
+  void onChange(ChangeEvent<K, V> event);
+}
+
+
+/**
+ * Bounded lock free queue for many producers and a single consumer.
+ *
+ * <p>Each slot has a sequence number saying whose turn it is. A producer claims a position with a
+ * compare and set on the tail then publishes its element by moving the slot's sequence on, so
+ * producers never block each other and the consumer never takes a lock.
+ *
+ * @param <E> the type of elements in the queue
+ */
+class RingBuffer<E> {
+  private final AtomicReferenceArray<E> slots;
+  private final AtomicLongArray sequences;
+  private final int mask;
+  private final AtomicLong tail = new AtomicLong();
+  // Only read and written by the consumer
+  private long head = 0;
+
+  RingBuffer(int capacity) {
+    int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+    slots = new AtomicReferenceArray<>(size);
+    sequences = new AtomicLongArray(size);
+    mask = size - 1;
+    for (int i = 0; i < size; i++) {
+      sequences.set(i, i);
+    }
+  }
+
+  /**
+   * Adds an element if there is room.
+   *
+   * @param element the element to add
+   * @return false if the queue is full
+   */
+  public boolean offer(E element) {
+    long position = tail.get();
+    while (true) {
+      int slot = (int) position & mask;
+      long difference = sequences.get(slot) - position;
+      if (difference == 0) {
+        if (tail.compareAndSet(position, position + 1)) {
+          slots.set(slot, element);
+          sequences.set(slot, position + 1);
+          return true;
+        }
+        position = tail.get();
+      } else if (difference < 0) {
+        // The consumer hasn't freed this slot from the last lap yet
+        return false;
+      } else {
+        // Another producer took the position
+        position = tail.get();
+      }
+    }
+  }
+
+  /**
+   * Takes the next element. Must only be called from the consumer thread.
+   *
+   * @return the next element or null if the queue is empty
+   */
+  public E poll() {
+    int slot = (int) head & mask;
+    if (sequences.get(slot) != head + 1) {
+      return null;
+    }
+    E element = slots.get(slot);
+    slots.set(slot, null);
+    // Hand the slot to the producer one lap ahead
+    sequences.set(slot, head + mask + 1);
+    head++;
+    return element;
+  }
+
+  public int capacity() {
+    return mask + 1;
+  }
+}
+
+
+/**
+ * Delivers change events to listeners on a dedicated thread so the write path only pays for
+ * queueing them.
+ *
+ * <p>Events from every tree sharing the feed are delivered one at a time in the order they were
+ * written. The thread is started by the first event. If the buffer is full the writer waits for
+ * the listeners to catch up rather than dropping events, so listeners should be quick and must
+ * not write to the trees themselves.
+ */
+class ChangeFeed {
+  private final RingBuffer<Runnable> buffer;
+  private final AtomicLong published = new AtomicLong();
+  private final AtomicLong delivered = new AtomicLong();
+  private final AtomicLong failures = new AtomicLong();
+  // The event the last listener failed on and why, null until one fails
+  private volatile String lastFailure;
+  private volatile Thread dispatcher;
+  private volatile boolean idle = false;
+
+  ChangeFeed(int capacity) {
+    buffer = new RingBuffer<>(capacity);
+  }
+
+  /**
+   * Queues an event for delivery to a tree's listeners.
+   *
+   * @param listeners the listeners to give the event to
+   * @param event the change
+   * @param <K> the type of primary keys in the tree
+   * @param <V> the type of values in the tree
+   */
+  public <K, V> void publish(Iterable<ChangeListener<K, V>> listeners, ChangeEvent<K, V> event) {
+    Thread thread = start();
+    Runnable delivery =
+      () -> {
+        for (ChangeListener<K, V> listener : listeners) {
+          try {
+            listener.onChange(event);
+          } catch (RuntimeException e) {
+            // One broken listener shouldn't stop the others or the dispatcher. The failure is
+            // kept for whoever reads the listener's results rather than printed over the prompt.
+            lastFailure = event + ": " + e;
+            failures.incrementAndGet();
+          }
+        }
+      };
+    while (!buffer.offer(delivery)) {
+      LockSupport.unpark(thread);
+      LockSupport.parkNanos(10_000);
+    }
+    published.incrementAndGet();
+    if (idle) {
+      LockSupport.unpark(thread);
+    }
+  }
+
+  // Waits until every event published before the call has been delivered
+  public void sync() {
+    long target = published.get();
+    while (delivered.get() < target) {
+      LockSupport.unpark(dispatcher);
+      LockSupport.parkNanos(10_000);
+    }
+  }
+
+  public long getPublished() {
+    return published.get();
+  }
+
+  public long getDelivered() {
+    return delivered.get();
+  }
+
+  // The number of times a listener has thrown, each one missed the event it threw on
+  public long getFailures() {
+    return failures.get();
+  }
+
+  public String getLastFailure() {
+    return lastFailure;
+  }
+
+  private Thread start() {
+    Thread thread = dispatcher;
+    if (thread == null) {
+      synchronized (this) {
+        if (dispatcher == null) {
+          dispatcher = new Thread(this::dispatch, "salon-change-feed");
+          // Don't keep the JVM alive once the command line exits
+          dispatcher.setDaemon(true);
+          dispatcher.start();
+        }
+        thread = dispatcher;
+      }
+    }
+    return thread;
+  }
+
+  private void dispatch() {
+    while (true) {
+      Runnable delivery = buffer.poll();
+      if (delivery == null) {
+        // Check again after saying we're idle so a publish in between isn't missed
+        idle = true;
+        delivery = buffer.poll();
+        if (delivery == null) {
+          LockSupport.park(this);
+          idle = false;
+          continue;
+        }
+        idle = false;
+      }
+      delivery.run();
+      delivered.incrementAndGet();
+    }
+  }
+}
@@ -0,0 +1,133 @@
+package salon;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+
+/**
+ * Read only copy of an index held in flat arrays for lookups and ordered scans.
+ *
+ * <p>The keys are kept in sorted order for range scans, which then read the arrays front to
+ * back. The start of a range is found with a copy of the keys in Eytzinger (breadth first) order,
+ * where the first steps of every search read the same few slots at the start of the array and
+ * each step's two children are next to each other. Exact lookups don't need the order at all and
+ * go through a hash table of positions, which avoids the string comparisons that dominate a
+ * TreeMap lookup when keys share long prefixes.
+ *
+ * @param <S> the type of values in the index
+ */
+class FrozenIndex<S> {
+  private final Comparator<? super String> comparator;
+  private final String[] keys;
+  private final Object[] values;
+  // 1 based Eytzinger layout of keys and the sorted position of each slot
+  private final String[] searchKeys;
+  private final int[] positions;
+  // Open addressed hash of key to sorted position plus one so exact lookups skip the comparisons
+  private final int[] table;
+  // The version of the index the snapshot was taken from
+  private final long version;
+
+  /**
+   * Copies an index into a new snapshot.
+   *
+   * @param index the sorted index to copy
+   * @param version the version of the index being copied
+   */
+  FrozenIndex(SortedMap<String, S> index, long version) {
+    Comparator<? super String> order = index.comparator();
+    this.comparator = order == null ? Comparator.naturalOrder() : order;
+    this.version = version;
+    int size = index.size();
+    keys = new String[size];
+    values = new Object[size];
+    int i = 0;
+    for (Map.Entry<String, S> entry : index.entrySet()) {
+      keys[i] = entry.getKey();
+      values[i++] = entry.getValue();
+    }
+    searchKeys = new String[size + 1];
+    positions = new int[size + 1];
+    layout(0, 1);
+    table = new int[Integer.highestOneBit(Math.max(2, size * 2 - 1)) << 1];
+    for (int position = 0; position < size; position++) {
+      table[slot(keys[position])] = position + 1;
+    }
+  }
+
+  public long getVersion() {
+    return version;
+  }
+
+  public int size() {
+    return keys.length;
+  }
+
+  // The keys and values are shared with the index so only the arrays count
+  public long estimatedBytes() {
+    return MemoryEstimator.shallow(FrozenIndex.class)
+      + 3 * MemoryEstimator.array(keys.length, MemoryEstimator.REFERENCE)
+      + MemoryEstimator.array(searchKeys.length, MemoryEstimator.REFERENCE)
+      + MemoryEstimator.array(positions.length, 4)
+      + MemoryEstimator.array(table.length, 4);
+  }
+
+  @SuppressWarnings("unchecked")
+  public S get(String key) {
+    int position = table[slot(key)] - 1;
+    return position < 0 ? null : (S) values[position];
+  }
+
+  /**
+   * Gets the values with keys from one key up to another in index order.
+   *
+   * @param fromKey the lowest key, inclusive
+   * @param toKey the highest key, exclusive
+   * @return the values in the range
+   */
+  @SuppressWarnings("unchecked")
+  public List<S> range(String fromKey, String toKey) {
+    List<S> result = new ArrayList<>();
+    for (int i = lowerBound(fromKey); i < keys.length; i++) {
+      if (comparator.compare(keys[i], toKey) >= 0) {
+        break;
+      }
+      result.add((S) values[i]);
+    }
+    return result;
+  }
+
+  // Linear probing from the key's hash to the slot holding it or the first empty slot
+  private int slot(String key) {
+    int mask = table.length - 1;
+    int slot = (int) PairCounter.mix(key.hashCode()) & mask;
+    while (table[slot] != 0 && !keys[table[slot] - 1].equals(key)) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  // Sorted position of the first key not before the given key, or size if there is none
+  private int lowerBound(String key) {
+    int slot = 1;
+    while (slot < searchKeys.length) {
+      slot = 2 * slot + (comparator.compare(searchKeys[slot], key) < 0 ? 1 : 0);
+    }
+    // Undo the right turns after the last left turn to get back to the slot the search ended on
+    slot >>= Integer.numberOfTrailingZeros(~slot) + 1;
+    return slot == 0 ? keys.length : positions[slot];
+  }
+
+  // An in order walk of the implicit tree visits the slots in sorted order
+  private int layout(int position, int slot) {
+    if (slot < searchKeys.length) {
+      position = layout(position, 2 * slot);
+      searchKeys[slot] = keys[position];
+      positions[slot] = position++;
+      position = layout(position, 2 * slot + 1);
+    }
+    return position;
+  }
+}
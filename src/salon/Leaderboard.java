@@ -0,0 +1,359 @@
+package salon;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.function.LongSupplier;
+
+// A stylist's place on a leaderboard with what they earned and how many bookings they had
+class LeaderboardEntry {
+  private final int rank;
+  private final int stylistId;
+  private final int earnings;
+  private final int bookings;
+
+  LeaderboardEntry(int rank, int stylistId, int earnings, int bookings) {
+    this.rank = rank;
+    this.stylistId = stylistId;
+    this.earnings = earnings;
+    this.bookings = bookings;
+  }
+
+  public int getRank() {
+    return rank;
+  }
+
+  public int getStylistId() {
+    return stylistId;
+  }
+
+  public int getEarnings() {
+    return earnings;
+  }
+
+  public int getBookings() {
+    return bookings;
+  }
+}
+
+
+/**
+ * Each stylist's earnings and bookings over a window of recent bookings, kept ranked as bookings
+ * enter and leave the window.
+ *
+ * <p>Totals are only adjusted by the bookings entering and leaving, so the window never has to be
+ * summed again. The ranking is a sorted set of the stylists with anything in the window, which a
+ * booking moves one stylist in for O(log stylists), so the top k are just the first k of the set.
+ */
+abstract class LeaderboardWindow {
+  private static final class Total {
+    private final int stylistId;
+    private int earnings;
+    private int bookings;
+
+    Total(int stylistId) {
+      this.stylistId = stylistId;
+    }
+  }
+
+  private final Map<Integer, Total> totals = new HashMap<>();
+  // Highest earnings first, ties go to the lowest stylist id
+  private final TreeSet<Total> ranking =
+    new TreeSet<>(
+      (a, b) -> {
+        int byEarnings = Integer.compare(b.earnings, a.earnings);
+        return byEarnings != 0 ? byEarnings : Integer.compare(a.stylistId, b.stylistId);
+      });
+
+  abstract void add(int bookingId, int stylistId, int earnings, long now);
+
+  // Takes a booking back out if it's still in the window, taking off what it added when it went
+  // in. Used when a transaction rolls back
+  abstract void remove(int bookingId);
+
+  // Lets time based windows drop what has expired before they are read
+  void advance(long now) {}
+
+  public List<LeaderboardEntry> top(int k) {
+    List<LeaderboardEntry> top = new ArrayList<>(Math.min(k, ranking.size()));
+    for (Total total : ranking) {
+      if (top.size() == k) {
+        break;
+      }
+      top.add(
+        new LeaderboardEntry(top.size() + 1, total.stylistId, total.earnings, total.bookings));
+    }
+    return top;
+  }
+
+  protected void adjust(int stylistId, int earnings, int bookings) {
+    Total total = totals.get(stylistId);
+    if (total == null) {
+      total = new Total(stylistId);
+      totals.put(stylistId, total);
+    } else if (earnings != 0) {
+      // Out of the set before its earnings change or the set can't find it again
+      ranking.remove(total);
+    }
+    boolean ranked = total.bookings > 0;
+    total.earnings += earnings;
+    total.bookings += bookings;
+    if (total.bookings <= 0) {
+      ranking.remove(total);
+      totals.remove(stylistId);
+    } else if (earnings != 0 || !ranked) {
+      ranking.add(total);
+    }
+  }
+}
+
+
+// The last few bookings in a ring, the oldest leaves as each new one arrives
+class BookingCountWindow extends LeaderboardWindow {
+  // Marks a slot whose booking was taken back out
+  private static final int REMOVED = -1;
+  private final int[] bookingIds;
+  private final int[] stylistIds;
+  private final int[] earnings;
+  private int next = 0;
+  private int size = 0;
+
+  BookingCountWindow(int bookings) {
+    bookingIds = new int[bookings];
+    stylistIds = new int[bookings];
+    earnings = new int[bookings];
+  }
+
+  public int capacity() {
+    return bookingIds.length;
+  }
+
+  @Override
+  void add(int bookingId, int stylistId, int earnings, long now) {
+    if (size == bookingIds.length) {
+      if (stylistIds[next] != REMOVED) {
+        adjust(stylistIds[next], -this.earnings[next], -1);
+      }
+    } else {
+      size++;
+    }
+    bookingIds[next] = bookingId;
+    stylistIds[next] = stylistId;
+    this.earnings[next] = earnings;
+    next = (next + 1) % bookingIds.length;
+    adjust(stylistId, earnings, 1);
+  }
+
+  // Rolled back bookings were only just added so the search starts from the newest
+  @Override
+  void remove(int bookingId) {
+    for (int i = 1; i <= size; i++) {
+      int slot = Math.floorMod(next - i, bookingIds.length);
+      if (bookingIds[slot] == bookingId && stylistIds[slot] != REMOVED) {
+        adjust(stylistIds[slot], -this.earnings[slot], -1);
+        stylistIds[slot] = REMOVED;
+        return;
+      }
+    }
+  }
+}
+
+
+/**
+ * The bookings made in the last so many minutes, kept as a ring of buckets of one bucket's worth
+ * of time each.
+ *
+ * <p>Each bucket holds the totals of the bookings made while it was current. When time moves past
+ * a bucket its totals are taken off the window's in one go, so a booking costs one map update
+ * going in and its share of one coming out, however many bookings are in the window. Buckets also
+ * keep what each of their bookings added so one taken back out takes off exactly that.
+ */
+class TimeWindow extends LeaderboardWindow {
+  private static final class Bucket {
+    // stylist id to earnings and bookings in the bucket
+    private final Map<Integer, int[]> totals = new HashMap<>();
+    // The id, stylist and earnings of each booking in the order they were added
+    private int[] bookings = new int[3 * 16];
+    private int size = 0;
+
+    void add(int bookingId, int stylistId, int earnings) {
+      if (size * 3 == bookings.length) {
+        bookings = Arrays.copyOf(bookings, bookings.length * 2);
+      }
+      bookings[size * 3] = bookingId;
+      bookings[size * 3 + 1] = stylistId;
+      bookings[size * 3 + 2] = earnings;
+      size++;
+      int[] total = totals.computeIfAbsent(stylistId, id -> new int[2]);
+      total[0] += earnings;
+      total[1]++;
+    }
+
+    // The lowest booking id in the bucket
+    int firstBookingId() {
+      return size == 0 ? Integer.MAX_VALUE : bookings[0];
+    }
+
+    void clear() {
+      totals.clear();
+      size = 0;
+    }
+  }
+
+  // Marks a booking that was taken back out
+  private static final int REMOVED = -1;
+  private final long bucketMillis;
+  private final List<Bucket> buckets = new ArrayList<>();
+  private final LongSupplier clock;
+  // The number of the newest bucket, counted in bucket lengths since the epoch
+  private long current;
+
+  TimeWindow(int bucketCount, long bucketMillis, LongSupplier clock) {
+    this.bucketMillis = bucketMillis;
+    this.clock = clock;
+    for (int i = 0; i < bucketCount; i++) {
+      buckets.add(new Bucket());
+    }
+    this.current = clock.getAsLong() / bucketMillis;
+  }
+
+  public long lengthMillis() {
+    return bucketMillis * buckets.size();
+  }
+
+  public long now() {
+    return clock.getAsLong();
+  }
+
+  @Override
+  void add(int bookingId, int stylistId, int earnings, long now) {
+    advance(now);
+    buckets.get(slot(current)).add(bookingId, stylistId, earnings);
+    adjust(stylistId, earnings, 1);
+  }
+
+  @Override
+  void remove(int bookingId) {
+    // Ids go up over time so the booking is in the newest bucket that starts at or before it
+    for (int age = 0; age < buckets.size(); age++) {
+      Bucket bucket = buckets.get(slot(current - age));
+      if (bucket.firstBookingId() <= bookingId) {
+        int[] bookings = bucket.bookings;
+        // Rolled back bookings were only just added so the search starts from the newest
+        for (int i = bucket.size - 1; i >= 0; i--) {
+          if (bookings[i * 3] == bookingId && bookings[i * 3 + 1] != REMOVED) {
+            int stylistId = bookings[i * 3 + 1];
+            int earnings = bookings[i * 3 + 2];
+            int[] total = bucket.totals.get(stylistId);
+            total[0] -= earnings;
+            total[1]--;
+            adjust(stylistId, -earnings, -1);
+            bookings[i * 3 + 1] = REMOVED;
+            break;
+          }
+        }
+        return;
+      }
+    }
+  }
+
+  // Empties the buckets that have fallen out of the window, at most all of them however long it's
+  // been since the last booking
+  @Override
+  void advance(long now) {
+    long bucket = now / bucketMillis;
+    if (bucket <= current) {
+      return;
+    }
+    long expired = Math.min(bucket - current, buckets.size());
+    for (long i = 1; i <= expired; i++) {
+      Bucket expiring = buckets.get(slot(current + i));
+      for (Map.Entry<Integer, int[]> entry : expiring.totals.entrySet()) {
+        adjust(entry.getKey(), -entry.getValue()[0], -entry.getValue()[1]);
+      }
+      expiring.clear();
+    }
+    current = bucket;
+  }
+
+  private int slot(long bucket) {
+    return (int) Math.floorMod(bucket, (long) buckets.size());
+  }
+}
+
+
+/**
+ * Live leaderboards of the stylists with the highest earnings over the last so many bookings and
+ * over the last hour.
+ *
+ * <p>The boards are fed by the change feed, so adding a booking only pays for queueing its event
+ * and the boards are updated on the feed thread. A booking's earnings are what it was charged,
+ * which is stored on the booking, so the feed thread never reads the service tree while it's being
+ * written. Reading a board doesn't wait for the feed, so a booking shows up on the boards shortly
+ * after it's added unless the reader syncs the feed first.
+ */
+class StylistLeaderboard {
+  private final BookingCountWindow recentBookings;
+  private final TimeWindow recentTime;
+
+  StylistLeaderboard(int bookings, int bucketCount, long bucketMillis, LongSupplier clock) {
+    recentBookings = new BookingCountWindow(bookings);
+    recentTime = new TimeWindow(bucketCount, bucketMillis, clock);
+  }
+
+  /**
+   * Starts following the bookings. Call before anything is added to the tree as what is already
+   * there isn't counted.
+   *
+   * @param bookingTree the tree of bookings to rank the stylists by
+   */
+  public void subscribe(RBTree<Integer, Booking> bookingTree) {
+    bookingTree.subscribe(this::onBooking);
+  }
+
+  // The bookings in a count window
+  public int getBookingWindow() {
+    return recentBookings.capacity();
+  }
+
+  public long getTimeWindowMillis() {
+    return recentTime.lengthMillis();
+  }
+
+  public synchronized List<LeaderboardEntry> topOverRecentBookings(int k) {
+    return recentBookings.top(k);
+  }
+
+  public synchronized List<LeaderboardEntry> topOverRecentTime(int k) {
+    recentTime.advance(recentTime.now());
+    return recentTime.top(k);
+  }
+
+  private synchronized void onBooking(ChangeEvent<Integer, Booking> event) {
+    Booking booking =
+      event.getType() == ChangeEvent.Type.DELETE ? event.getOldValue() : event.getNewValue();
+    // Stylists' sentinel bookings have no client and aren't real bookings
+    if (booking.getClientId() == null) {
+      return;
+    }
+    switch (event.getType()) {
+      case INSERT:
+        int earnings = booking.getTotalCost();
+        long now = recentTime.now();
+        recentBookings.add(booking.getBookingId(), booking.getStylistId(), earnings, now);
+        recentTime.add(booking.getBookingId(), booking.getStylistId(), earnings, now);
+        break;
+      case DELETE:
+        // Each window takes off what the booking added when it went in
+        recentBookings.remove(booking.getBookingId());
+        recentTime.remove(booking.getBookingId());
+        break;
+      case UPDATE:
+        // Bookings are never changed once made
+        break;
+    }
+  }
+}
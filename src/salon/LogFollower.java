@@ -0,0 +1,182 @@
+package salon;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Tails a leader's MutationLog and replays it against a read only SalonData.
+ *
+ * <p>The log is polled every POLL_MILLIS so a follower that keeps up is never more than one poll
+ * behind. Changes are applied while holding the SalonData lock so queries never see a half applied
+ * record. After each batch the follower writes its position to the ack file for the leader.
+ *
+ * <p>The leader only logs changes it has committed, so a record the follower can't apply means the
+ * two have already diverged. Replaying gives new records the next ids in turn, so skipping the
+ * record would shift the ids of everything after it. The follower stops at the record instead and
+ * reports itself as stopped, leaving the data as it was before the record.
+ */
+class LogFollower implements Runnable {
+  static final long POLL_MILLIS = 100;
+  // Cap how much of the log is read in one go when catching up on a long log
+  private static final int MAX_READ_BYTES = 1 << 20;
+
+  private final Path path;
+  private final SalonData salonData;
+  private long position = 0;
+  private volatile long appliedSeq = 0;
+  private volatile long appliedTimestamp = 0;
+  private volatile long unreadBytes = 0;
+  private volatile long lastPoll = 0;
+  private volatile String error;
+  // Why the follower stopped applying the log, null while it's running
+  private volatile String stopped;
+
+  LogFollower(Path path, SalonData salonData) {
+    this.path = path;
+    this.salonData = salonData;
+  }
+
+  public Thread start() {
+    Thread thread = new Thread(this, "salon-log-follower");
+    thread.setDaemon(true);
+    thread.start();
+    return thread;
+  }
+
+  @Override
+  public void run() {
+    while (!Thread.currentThread().isInterrupted() && stopped == null) {
+      try {
+        poll();
+        // Cleared once a poll gets through, unless the poll stopped on a record
+        error = stopped;
+        Thread.sleep(POLL_MILLIS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } catch (IOException | RuntimeException e) {
+        // Keep polling as the leader may not have created the log yet
+        error = e.getMessage();
+        try {
+          Thread.sleep(POLL_MILLIS);
+        } catch (InterruptedException interrupted) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    }
+  }
+
+  /**
+   * Applies every complete record written to the log since the last poll.
+   *
+   * @throws IOException if the log can't be read
+   */
+  public void poll() throws IOException {
+    lastPoll = System.currentTimeMillis();
+    if (!Files.exists(path)) {
+      return;
+    }
+    int readBytes = MAX_READ_BYTES;
+    try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "r")) {
+      while (stopped == null && file.length() > position) {
+        byte[] bytes = new byte[(int) Math.min(file.length() - position, readBytes)];
+        file.seek(position);
+        file.readFully(bytes);
+        // Only apply complete lines, the leader may be part way through writing the last one
+        int end = bytes.length - 1;
+        while (end >= 0 && bytes[end] != '\n') {
+          end--;
+        }
+        if (end < 0) {
+          if (bytes.length < readBytes) {
+            break;
+          }
+          // A single record longer than a read, read more at once until its end is in the buffer
+          readBytes *= 2;
+          continue;
+        }
+        readBytes = MAX_READ_BYTES;
+        String records = new String(bytes, 0, end, StandardCharsets.UTF_8);
+        try {
+          synchronized (salonData) {
+            for (String line : records.split("\n", -1)) {
+              if (!line.isEmpty()) {
+                try {
+                  String[] fields = MutationLog.apply(line, salonData);
+                  appliedSeq = Long.parseLong(fields[0]);
+                  appliedTimestamp = Long.parseLong(fields[1]);
+                } catch (RuntimeException e) {
+                  // The position stays on the record so the status says where it stopped
+                  stopped =
+                    "the record at byte " + position + " could not be applied: " + e.getMessage();
+                  break;
+                }
+              }
+              position += line.getBytes(StandardCharsets.UTF_8).length + 1;
+            }
+          }
+        } finally {
+          writeAck();
+        }
+      }
+      unreadBytes = file.length() - position;
+    }
+  }
+
+  public long getAppliedSeq() {
+    return appliedSeq;
+  }
+
+  public boolean isStopped() {
+    return stopped != null;
+  }
+
+  /**
+   * Reports how far the follower has got through the log.
+   *
+   * @return a readable replication status
+   */
+  public String status() {
+    long now = System.currentTimeMillis();
+    // A new record waits at most one poll, plus the time since the last poll if records are left
+    long lagBound = (unreadBytes > 0 ? now - lastPoll : 0) + POLL_MILLIS;
+    if (stopped != null) {
+      return "Follower of "
+        + path
+        + " stopped after record "
+        + appliedSeq
+        + ", "
+        + stopped
+        + ". It no longer matches the leader and needs to be started again from the full log";
+    }
+    return "Follower reading "
+      + path
+      + ", applied record "
+      + appliedSeq
+      + (appliedTimestamp > 0 ? " written " + (now - appliedTimestamp) + " ms ago" : "")
+      + ", "
+      + unreadBytes
+      + " bytes unread, last polled "
+      + (now - lastPoll)
+      + " ms ago, lag at most "
+      + lagBound
+      + " ms"
+      + (error == null ? "" : ". Last error: " + error);
+  }
+
+  // Write to a temporary file and move it so the leader never reads a half written ack
+  private void writeAck() {
+    Path ackPath = MutationLog.getAckPath(path);
+    Path tempPath = ackPath.resolveSibling(ackPath.getFileName() + ".tmp");
+    try {
+      Files.writeString(tempPath, appliedSeq + " " + System.currentTimeMillis() + "\n");
+      Files.move(tempPath, ackPath, StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Could not write the follower ack " + ackPath, e);
+    }
+  }
+}
@@ -1,13 +1,28 @@
 package salon;
 
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.SortedMap;
 import java.util.function.BiFunction;
 import java.util.function.Function;
 import java.util.function.Predicate;
+import java.util.stream.IntStream;
 
 /** Utility class providing various operations on maps. */
 public final class MapUtilities {
+  // Below this many entries splitting the key extraction between threads costs more than it saves
+  private static final int PARALLEL_THRESHOLD = 10_000;
 
   /**
    * Finds the first value in the map that matches the given condition.
@@ -74,6 +89,49 @@ public final class MapUtilities {
     return result;
   }
 
+  /**
+   * Finds the k greatest values using a bounded heap. Only k values are ever held so this takes
+   * O(n log k) time and O(k) memory rather than sorting every value.
+   *
+   * @param values the values to search
+   * @param k the number of values to return
+   * @param comparator the comparator to determine the order of the values
+   * @param <V> the type of the values
+   * @return up to k values, greatest first
+   */
+  public static <V> List<V> topK(Collection<V> values, int k, Comparator<? super V> comparator) {
+    if (k <= 0) {
+      return new ArrayList<>();
+    }
+    // The heap's head is the smallest of the values kept so it's the one to drop
+    PriorityQueue<V> heap = new PriorityQueue<>(k + 1, comparator);
+    for (V value : values) {
+      if (heap.size() < k) {
+        heap.add(value);
+      } else if (comparator.compare(value, heap.peek()) > 0) {
+        heap.poll();
+        heap.add(value);
+      }
+    }
+    List<V> result = new ArrayList<>(heap);
+    result.sort(comparator.reversed());
+    return result;
+  }
+
+  /**
+   * Finds the k smallest values using a bounded heap, see topK.
+   *
+   * @param values the values to search
+   * @param k the number of values to return
+   * @param comparator the comparator to determine the order of the values
+   * @param <V> the type of the values
+   * @return up to k values, smallest first
+   */
+  public static <V> List<V> bottomK(
+    Collection<V> values, int k, Comparator<? super V> comparator) {
+    return topK(values, k, Collections.reverseOrder(comparator));
+  }
+
   /**
    * Sorts the map based on a key extracted from its entries and returns an IndexTree.
    *
@@ -93,6 +151,9 @@ public final class MapUtilities {
    * Sorts the map based on a key extracted from its entries and a custom comparator, returning an
    * IndexTree.
    *
+   * <p>Rather than putting entries one at a time the keys are extracted in parallel for large maps,
+   * sorted with a parallel sort and the IndexTree built from the sorted run in a single pass.
+   *
    * @param map the map to be sorted
    * @param keyExtractor function to extract the sort key from map entries
    * @param comparator the comparator to determine the order of the keys
@@ -106,10 +167,144 @@ public final class MapUtilities {
     Function<Map.Entry<MK, S>, KK> keyExtractor,
     Comparator<? super String> comparator) {
     IndexTree<MK, KK, S> index = new IndexTree<MK, KK, S>(keyExtractor, comparator);
-    for (Map.Entry<MK, S> entry : map.entrySet()) {
-      String sortKey = index.getKeyExtractor().apply(entry);
-      index.put(sortKey, entry.getValue());
+    Function<Map.Entry<MK, S>, String> indexKeyExtractor = index.getKeyExtractor();
+    List<Map.Entry<MK, S>> entries = new ArrayList<>(map.entrySet());
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    Map.Entry<String, S>[] sorted = new Map.Entry[entries.size()];
+    IntStream positions = IntStream.range(0, sorted.length);
+    (sorted.length >= PARALLEL_THRESHOLD ? positions.parallel() : positions)
+      .forEach(
+        i -> sorted[i] =
+          new AbstractMap.SimpleImmutableEntry<>(
+            indexKeyExtractor.apply(entries.get(i)), entries.get(i).getValue()));
+    Comparator<? super String> order =
+      index.comparator() == null ? Comparator.naturalOrder() : index.comparator();
+    Arrays.parallelSort(sorted, (a, b) -> order.compare(a.getKey(), b.getKey()));
+    for (int i = 1; i < sorted.length; i++) {
+      if (order.compare(sorted[i - 1].getKey(), sorted[i].getKey()) == 0) {
+        // A sorted build needs unique keys, with duplicates the last one put wins as before
+        for (Map.Entry<String, S> entry : sorted) {
+          index.put(entry.getKey(), entry.getValue());
+        }
+        return index;
+      }
     }
+    // A TreeMap is built from another sorted map with the same order in one linear pass
+    index.putAll(new SortedRun<>(sorted, index.comparator()));
     return index;
   }
+
+  // A read only SortedMap over sorted entries with unique keys, which lets TreeMap.putAll take its
+  // linear path. Views share the array and cover the entries from index from up to but not
+  // including to.
+  private static final class SortedRun<S> extends AbstractMap<String, S>
+    implements SortedMap<String, S> {
+    private final Map.Entry<String, S>[] entries;
+    private final Comparator<? super String> comparator;
+    private final Comparator<? super String> order;
+    private final int from;
+    private final int to;
+
+    SortedRun(Map.Entry<String, S>[] entries, Comparator<? super String> comparator) {
+      this(entries, comparator, 0, entries.length);
+    }
+
+    private SortedRun(
+      Map.Entry<String, S>[] entries, Comparator<? super String> comparator, int from, int to) {
+      this.entries = entries;
+      this.comparator = comparator;
+      this.order = comparator == null ? Comparator.naturalOrder() : comparator;
+      this.from = from;
+      this.to = to;
+    }
+
+    // The index of the first entry in this view with a key at or after key, found by binary search.
+    // Keys outside the view are clamped to its ends.
+    private int lowerBound(String key) {
+      int low = from;
+      int high = to;
+      while (low < high) {
+        int mid = (low + high) >>> 1;
+        if (order.compare(entries[mid].getKey(), key) < 0) {
+          low = mid + 1;
+        } else {
+          high = mid;
+        }
+      }
+      return low;
+    }
+
+    @Override
+    public Comparator<? super String> comparator() {
+      return comparator;
+    }
+
+    @Override
+    public Set<Map.Entry<String, S>> entrySet() {
+      return new AbstractSet<>() {
+        @Override
+        public Iterator<Map.Entry<String, S>> iterator() {
+          return Arrays.asList(entries).subList(from, to).iterator();
+        }
+
+        @Override
+        public int size() {
+          return to - from;
+        }
+      };
+    }
+
+    @Override
+    public int size() {
+      return to - from;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+      int position = lowerBound((String) key);
+      return position < to && order.compare(entries[position].getKey(), (String) key) == 0;
+    }
+
+    @Override
+    public S get(Object key) {
+      int position = lowerBound((String) key);
+      return position < to && order.compare(entries[position].getKey(), (String) key) == 0
+        ? entries[position].getValue()
+        : null;
+    }
+
+    @Override
+    public String firstKey() {
+      if (from == to) {
+        throw new NoSuchElementException();
+      }
+      return entries[from].getKey();
+    }
+
+    @Override
+    public String lastKey() {
+      if (from == to) {
+        throw new NoSuchElementException();
+      }
+      return entries[to - 1].getKey();
+    }
+
+    @Override
+    public SortedMap<String, S> subMap(String fromKey, String toKey) {
+      if (order.compare(fromKey, toKey) > 0) {
+        throw new IllegalArgumentException("fromKey > toKey");
+      }
+      return new SortedRun<>(entries, comparator, lowerBound(fromKey), lowerBound(toKey));
+    }
+
+    @Override
+    public SortedMap<String, S> headMap(String toKey) {
+      return new SortedRun<>(entries, comparator, from, lowerBound(toKey));
+    }
+
+    @Override
+    public SortedMap<String, S> tailMap(String fromKey) {
+      return new SortedRun<>(entries, comparator, lowerBound(fromKey), to);
+    }
+  }
 }
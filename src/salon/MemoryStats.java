@@ -0,0 +1,285 @@
+package salon;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Rough sizes of the objects the trees are built from, assuming a 64 bit JVM with compressed
+ * references, so 12 byte object headers, 4 byte references and objects padded to 8 bytes.
+ *
+ * <p>Structures are sized from their entry counts and a sample of their keys rather than by
+ * walking the heap, so an estimate costs about the same however big the structure is. Strings the
+ * entities get from StringPool are shared and are not counted against any one structure, every
+ * other string is counted with the value that holds it.
+ */
+final class MemoryEstimator {
+  static final int OBJECT_HEADER = 12;
+  static final int ARRAY_HEADER = 16;
+  static final int REFERENCE = 4;
+  static final int BOXED = 16;
+  static final int TREE_MAP = 48;
+  static final int TREE_MAP_ENTRY = 40;
+  static final int HASH_MAP = 48;
+  static final int HASH_MAP_NODE = 32;
+  // Most values or keys looked at to estimate the average size of the rest
+  private static final int SAMPLE = 256;
+  private static final ClassValue<Long> SHALLOW =
+    new ClassValue<>() {
+      @Override
+      protected Long computeValue(Class<?> type) {
+        long size = OBJECT_HEADER;
+        for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+          for (Field field : c.getDeclaredFields()) {
+            if (!Modifier.isStatic(field.getModifiers())) {
+              size += fieldSize(field.getType());
+            }
+          }
+        }
+        return align(size);
+      }
+    };
+
+  private MemoryEstimator() {
+    throw new UnsupportedOperationException("This is a utility class and cannot be instantiated");
+  }
+
+  public static long align(long bytes) {
+    return (bytes + 7) & ~7L;
+  }
+
+  public static long array(int length, int elementBytes) {
+    return align(ARRAY_HEADER + (long) length * elementBytes);
+  }
+
+  // Compact strings hold one byte per character when the text is Latin-1
+  public static long string(String text) {
+    return 24 + array(text.length(), 1);
+  }
+
+  public static long treeMap(int size) {
+    return TREE_MAP + (long) size * TREE_MAP_ENTRY;
+  }
+
+  // HashMap tables are a power of two kept at most three quarters full
+  public static long hashMap(int size) {
+    int table = size == 0 ? 0 : Integer.highestOneBit(Math.max(1, (int) (size / 0.75f)) - 1) << 1;
+    return HASH_MAP + array(table, REFERENCE) + (long) size * HASH_MAP_NODE;
+  }
+
+  // The fields of an object without anything it points to
+  public static long shallow(Class<?> type) {
+    return SHALLOW.get(type);
+  }
+
+  /**
+   * Estimates the bytes held by the values in a collection from a sample of them. Each value is
+   * counted with the arrays, dates and unpooled strings it owns.
+   *
+   * @param values the values to size
+   * @return the estimated bytes of every value
+   */
+  public static long values(Collection<?> values) {
+    if (values.isEmpty()) {
+      return 0;
+    }
+    long sampled = 0;
+    int count = 0;
+    Iterator<?> iterator = values.iterator();
+    while (iterator.hasNext() && count < SAMPLE) {
+      sampled += owned(iterator.next());
+      count++;
+    }
+    return sampled * values.size() / count;
+  }
+
+  // Estimates the bytes of the strings in a collection from a sample of them
+  public static long strings(Collection<String> strings) {
+    if (strings.isEmpty()) {
+      return 0;
+    }
+    long sampled = 0;
+    int count = 0;
+    Iterator<String> iterator = strings.iterator();
+    while (iterator.hasNext() && count < SAMPLE) {
+      sampled += string(iterator.next());
+      count++;
+    }
+    return sampled * strings.size() / count;
+  }
+
+  private static long owned(Object value) {
+    if (value == null) {
+      return 0;
+    }
+    if (value instanceof String) {
+      return StringPool.isPooled((String) value) ? 0 : string((String) value);
+    }
+    Class<?> type = value.getClass();
+    if (type.isArray()) {
+      int length = Array.getLength(value);
+      if (type.getComponentType().isPrimitive()) {
+        return array(length, fieldSize(type.getComponentType()));
+      }
+      long size = array(length, REFERENCE);
+      for (int i = 0; i < length; i++) {
+        // Integers from -128 to 127 are cached so only bigger ones cost anything
+        Object element = Array.get(value, i);
+        boolean cached = element instanceof Integer && Math.abs((Integer) element) < 128;
+        size += cached ? 0 : owned(element);
+      }
+      return size;
+    }
+    if (value instanceof LocalDateTime) {
+      // A LocalDateTime holds its own LocalDate and LocalTime
+      return shallow(LocalDateTime.class) + 48;
+    }
+    long size = shallow(type);
+    // Only the salon's own classes are looked inside, the JDK's are counted as they are
+    if (!type.getModule().isNamed()) {
+      for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+        for (Field field : c.getDeclaredFields()) {
+          if (!Modifier.isStatic(field.getModifiers()) && !field.getType().isPrimitive()) {
+            size += owned(read(field, value));
+          }
+        }
+      }
+    }
+    return size;
+  }
+
+  private static Object read(Field field, Object value) {
+    try {
+      field.setAccessible(true);
+      return field.get(value);
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      return null;
+    }
+  }
+
+  private static int fieldSize(Class<?> type) {
+    if (type == long.class || type == double.class) {
+      return 8;
+    } else if (type == int.class || type == float.class) {
+      return 4;
+    } else if (type == short.class || type == char.class) {
+      return 2;
+    } else if (type == byte.class || type == boolean.class) {
+      return 1;
+    }
+    return REFERENCE;
+  }
+}
+
+
+// The estimated size of one structure, a row of the memory report
+class StructureStats {
+  private final String tree;
+  private final String structure;
+  private final long entries;
+  private final long bytes;
+
+  StructureStats(String tree, String structure, long entries, long bytes) {
+    this.tree = tree;
+    this.structure = structure;
+    this.entries = entries;
+    this.bytes = bytes;
+  }
+
+  public String getTree() {
+    return tree;
+  }
+
+  public String getStructure() {
+    return structure;
+  }
+
+  public long getEntries() {
+    return entries;
+  }
+
+  public long getBytes() {
+    return bytes;
+  }
+}
+
+
+class AggregateStats {
+  private final String tree;
+  private final int groups;
+  private final long values;
+  private final long bytes;
+  private final LocalDateTime seen;
+
+  AggregateStats(String tree, int groups, long values, long bytes, LocalDateTime seen) {
+    this.tree = tree;
+    this.groups = groups;
+    this.values = values;
+    this.bytes = bytes;
+    this.seen = seen;
+  }
+
+  public String getTree() {
+    return tree;
+  }
+
+  public int getGroups() {
+    return groups;
+  }
+
+  public long getValues() {
+    return values;
+  }
+
+  public long getBytes() {
+    return bytes;
+  }
+
+  public LocalDateTime getSeen() {
+    return seen;
+  }
+}
+
+
+/**
+ * Remembers the biggest aggregates built since the program started.
+ *
+ * <p>Aggregates only live for the length of a query so they never show up in a tree's footprint,
+ * but one over a big tree can hold a reference to every value for a while. Only the few largest
+ * are kept so recording one costs a comparison against them.
+ */
+final class LargestAggregates {
+  private static final int KEPT = 5;
+  private static final List<AggregateStats> largest = new ArrayList<>();
+
+  private LargestAggregates() {
+    throw new UnsupportedOperationException("This is a utility class and cannot be instantiated");
+  }
+
+  public static synchronized void record(String tree, Aggregate<?, ?, ?> aggregate) {
+    long bytes = aggregate.estimatedBytes();
+    if (largest.size() == KEPT && bytes <= largest.get(KEPT - 1).getBytes()) {
+      return;
+    }
+    int position = 0;
+    while (position < largest.size() && largest.get(position).getBytes() >= bytes) {
+      position++;
+    }
+    largest.add(
+      position,
+      new AggregateStats(
+        tree, aggregate.getPrimaryStore().size(), aggregate.valueCount(), bytes, LocalDateTime.now()));
+    if (largest.size() > KEPT) {
+      largest.remove(KEPT);
+    }
+  }
+
+  public static synchronized List<AggregateStats> get() {
+    return new ArrayList<>(largest);
+  }
+}
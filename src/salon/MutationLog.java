@@ -0,0 +1,284 @@
+package salon;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Append only log of every change made to a leader SalonData.
+ *
+ * <p>Each change is one line of tab separated fields: the sequence number, the time it was written
+ * in epoch millis, the operation and then its arguments. Followers tail the file and replay the
+ * lines against their own SalonData, then write how far they have got to an ack file next to the
+ * log so the leader can report their lag.
+ *
+ * <p>Changes are appended as the last step of the transaction that makes them. If the write fails
+ * the file is cut back to where it was, so a change the leader rolls back never reaches a
+ * follower.
+ */
+class MutationLog implements Closeable {
+  static final String SERVICE = "service";
+  static final String CLIENT = "client";
+  static final String STYLIST = "stylist";
+  static final String BOOKING = "booking";
+  // A follower further behind than this is reported as lagging
+  static final long MAX_LAG_MILLIS = 1000;
+  // Most batches whose write times are kept for working out how old a follower's next record is
+  private static final int MAX_TRACKED_BATCHES = 4096;
+
+  private final Path path;
+  private final FileChannel channel;
+  private long lastSeq;
+  // The first sequence number of each recent batch to the time it was written
+  private final TreeMap<Long, Long> batchTimes;
+
+  private MutationLog(Path path, long lastSeq, TreeMap<Long, Long> batchTimes) throws IOException {
+    this.path = path;
+    this.lastSeq = lastSeq;
+    this.batchTimes = batchTimes;
+    this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    channel.position(channel.size());
+  }
+
+  /**
+   * Opens a log for appending, first replaying any records already in it so the SalonData starts
+   * from where the leader left off.
+   *
+   * @param path the log file
+   * @param salonData the SalonData the log records changes to
+   * @return the open log, which is also set on the SalonData
+   * @throws IOException if the log can't be read or opened
+   */
+  public static MutationLog open(Path path, SalonData salonData) throws IOException {
+    long lastSeq = 0;
+    TreeMap<Long, Long> batchTimes = new TreeMap<>();
+    if (Files.exists(path)) {
+      for (String line : Files.readAllLines(path, StandardCharsets.UTF_8)) {
+        if (!line.isEmpty()) {
+          String[] fields = apply(line, salonData);
+          lastSeq = Long.parseLong(fields[0]);
+          track(batchTimes, lastSeq, Long.parseLong(fields[1]));
+        }
+      }
+    }
+    MutationLog log = new MutationLog(path, lastSeq, batchTimes);
+    salonData.setMutationLog(log);
+    return log;
+  }
+
+  public static Path getAckPath(Path path) {
+    return Paths.get(path + ".ack");
+  }
+
+  public Path getPath() {
+    return path;
+  }
+
+  public synchronized long getLastSeq() {
+    return lastSeq;
+  }
+
+  /**
+   * Appends a change to the log and flushes it so followers can see it straight away.
+   *
+   * @param operation one of the operation constants
+   * @param args the arguments needed to replay the operation
+   */
+  public synchronized void append(String operation, Object... args) {
+    appendAll(operation, Collections.singletonList(args));
+  }
+
+  /**
+   * Appends a change per set of arguments and flushes once after the last of them, so a batch
+   * costs one write to the file rather than one per change.
+   *
+   * @param operation one of the operation constants
+   * @param changes the arguments needed to replay each change
+   */
+  public synchronized void appendAll(String operation, List<Object[]> changes) {
+    StringBuilder lines = new StringBuilder();
+    long timestamp = System.currentTimeMillis();
+    long seq = lastSeq;
+    for (Object[] args : changes) {
+      lines.append(++seq).append('\t').append(timestamp).append('\t').append(operation);
+      for (Object arg : args) {
+        lines.append('\t').append(escape(format(arg)));
+      }
+      lines.append('\n');
+    }
+    ByteBuffer bytes = ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.UTF_8));
+    long start = -1;
+    try {
+      start = channel.position();
+      while (bytes.hasRemaining()) {
+        channel.write(bytes);
+      }
+    } catch (IOException e) {
+      // Cut off whatever part of the batch made it into the file, the caller rolls it back
+      if (start >= 0) {
+        try {
+          channel.truncate(start);
+          channel.position(start);
+        } catch (IOException truncateFailure) {
+          e.addSuppressed(truncateFailure);
+        }
+      }
+      throw new UncheckedIOException("Could not write to the mutation log " + path, e);
+    }
+    track(batchTimes, lastSeq + 1, timestamp);
+    lastSeq = seq;
+  }
+
+  /**
+   * Replays one log line against a SalonData.
+   *
+   * @param line the log line without its line break
+   * @param salonData the SalonData to change
+   * @return the fields of the line, starting with the sequence number and timestamp
+   */
+  public static String[] apply(String line, SalonData salonData) {
+    String[] fields = line.split("\t", -1);
+    for (int i = 0; i < fields.length; i++) {
+      fields[i] = unescape(fields[i]);
+    }
+    switch (fields[2]) {
+      case SERVICE:
+        salonData.addService(fields[3], Integer.valueOf(fields[4]), Integer.valueOf(fields[5]));
+        break;
+      case CLIENT:
+        salonData.addClient(fields[3], fields[4], fields[5]);
+        break;
+      case STYLIST:
+        salonData.addStylist(fields[3], fields[4]);
+        break;
+      case BOOKING:
+        salonData.addBooking(
+          parseInteger(fields[3]),
+          salonData.stylistTree.get(Integer.valueOf(fields[4])),
+          fields[5].isEmpty() ? null : LocalDateTime.parse(fields[5]),
+          parseIntegers(fields[6]));
+        break;
+      default:
+        throw new IllegalStateException("Unknown mutation log operation " + fields[2]);
+    }
+    return fields;
+  }
+
+  /**
+   * Reports how far behind the follower is using the ack file it writes.
+   *
+   * @return a readable replication status
+   */
+  public String status() {
+    long leaderSeq = getLastSeq();
+    String status = "Leader writing " + path + ", last record " + leaderSeq;
+    Path ackPath = getAckPath(path);
+    if (!Files.exists(ackPath)) {
+      return status + ". No follower has acknowledged the log yet";
+    }
+    try {
+      // The ack holds the applied sequence number and when it was applied
+      String[] ack = Files.readString(ackPath, StandardCharsets.UTF_8).trim().split(" ");
+      long followerSeq = Long.parseLong(ack[0]);
+      long behind = leaderSeq - followerSeq;
+      // How long the oldest record the follower hasn't applied has been waiting
+      long lagMillis = behind > 0 ? System.currentTimeMillis() - writtenAt(followerSeq + 1) : 0;
+      return status
+        + ". Follower applied record "
+        + followerSeq
+        + ", "
+        + behind
+        + " records and "
+        + lagMillis
+        + " ms behind"
+        + (lagMillis > MAX_LAG_MILLIS ? " (over the " + MAX_LAG_MILLIS + " ms bound)" : "");
+    } catch (IOException | RuntimeException e) {
+      return status + ". Could not read the follower ack " + ackPath;
+    }
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    channel.close();
+  }
+
+  // Records when a batch starting at seq was written, batches written in the same milli are one
+  private static void track(TreeMap<Long, Long> batchTimes, long seq, long timestamp) {
+    Map.Entry<Long, Long> last = batchTimes.lastEntry();
+    if (last != null && last.getValue() == timestamp) {
+      return;
+    }
+    batchTimes.put(seq, timestamp);
+    if (batchTimes.size() > MAX_TRACKED_BATCHES) {
+      batchTimes.pollFirstEntry();
+    }
+  }
+
+  // When the record was written. Batches the follower has finished are dropped, and a record older
+  // than every batch kept is given the oldest time kept, which is as long as it can be sure of.
+  private synchronized long writtenAt(long seq) {
+    Map.Entry<Long, Long> batch = batchTimes.floorEntry(seq);
+    if (batch == null) {
+      batch = batchTimes.firstEntry();
+    } else {
+      batchTimes.headMap(batch.getKey(), false).clear();
+    }
+    return batch == null ? System.currentTimeMillis() : batch.getValue();
+  }
+
+  private static String format(Object arg) {
+    if (arg == null) {
+      return "";
+    } else if (arg instanceof Integer[]) {
+      String ids = Arrays.toString((Integer[]) arg);
+      return ids.substring(1, ids.length() - 1).replace(" ", "");
+    }
+    return arg.toString();
+  }
+
+  private static Integer parseInteger(String field) {
+    return field.isEmpty() ? null : Integer.valueOf(field);
+  }
+
+  private static Integer[] parseIntegers(String field) {
+    if (field.isEmpty()) {
+      return new Integer[0];
+    }
+    return Arrays.stream(field.split(",")).map(Integer::valueOf).toArray(Integer[]::new);
+  }
+
+  // Tabs and line breaks separate fields and records so they are escaped inside values
+  private static String escape(String value) {
+    return value.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n");
+  }
+
+  private static String unescape(String value) {
+    if (value.indexOf('\\') < 0) {
+      return value;
+    }
+    StringBuilder result = new StringBuilder();
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c == '\\' && i + 1 < value.length()) {
+        char next = value.charAt(++i);
+        result.append(next == 't' ? '\t' : next == 'n' ? '\n' : next);
+      } else {
+        result.append(c);
+      }
+    }
+    return result.toString();
+  }
+}
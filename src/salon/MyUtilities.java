@@ -5,6 +5,15 @@ import java.util.Locale;
 
 // A utility class to hold generic utility methods that don't fit in a specific class.
 final class MyUtilities {
+  // NumberFormat isn't thread safe and is slow to create, so each thread keeps its own
+  private static final ThreadLocal<NumberFormat> POUNDS =
+    ThreadLocal.withInitial(
+      () -> {
+        NumberFormat currencyFormat = NumberFormat.getCurrencyInstance(Locale.UK);
+        currencyFormat.setMinimumFractionDigits(0);
+        return currencyFormat;
+      });
+
   private MyUtilities() {
     throw new UnsupportedOperationException("This is a utility class and cannot be instantiated");
   }
@@ -17,8 +26,6 @@ final class MyUtilities {
   // Formats a number like 10 that represents £10,000 to be just that by passing the number to
   // format and the times amount
   static String displayInPounds(Number amount, int times) {
-    NumberFormat currencyFormat = NumberFormat.getCurrencyInstance(Locale.UK);
-    currencyFormat.setMinimumFractionDigits(0);
-    return currencyFormat.format(amount.doubleValue() * times);
+    return POUNDS.get().format(amount.doubleValue() * times);
   }
 }
@@ -0,0 +1,93 @@
+package salon;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Unique hash index from a natural key, such as a client's phone number or a service's name, to
+ * the primary key of the value that has it.
+ *
+ * <p>The natural key is normalised before it's stored or looked up so "+44 842 018472" and
+ * "44842018472" find the same client. Lookups are a single hash probe, which lets an add check
+ * whether the value already exists without scanning the tree. The index doesn't reject a second
+ * value with the same key, the newest one just takes it over, so callers that want keys to stay
+ * unique look the key up first.
+ *
+ * @param <K> the type of primary keys in the tree
+ * @param <V> the type of values in the tree
+ */
+class NaturalKeyIndex<K extends Comparable<? super K>, V> {
+  private final Function<V, String> keyExtractor;
+  private final Function<String, String> normaliser;
+  // normalised natural key to primary key
+  private final Map<String, K> primaryKeys = new HashMap<>();
+  // primary key to the natural key stored for it, values change in place so the old key can't be
+  // worked out from the value when it's updated
+  private final Map<K, String> naturalKeys = new HashMap<>();
+
+  /**
+   * Constructs a NaturalKeyIndex.
+   *
+   * @param keyExtractor function to get the natural key of a value
+   * @param normaliser function to turn a natural key into the form that's stored and looked up
+   */
+  NaturalKeyIndex(Function<V, String> keyExtractor, Function<String, String> normaliser) {
+    this.keyExtractor = keyExtractor;
+    this.normaliser = normaliser;
+  }
+
+  // Values without a natural key aren't indexed
+  public void update(K key, V value) {
+    String naturalKey = normalise(keyExtractor.apply(value));
+    String oldKey = naturalKey == null ? naturalKeys.remove(key) : naturalKeys.put(key, naturalKey);
+    // Most updates are to totals so the key is usually the same
+    if (naturalKey != null && naturalKey.equals(oldKey)) {
+      return;
+    }
+    if (oldKey != null) {
+      primaryKeys.remove(oldKey, key);
+    }
+    if (naturalKey != null) {
+      primaryKeys.put(naturalKey, key);
+    }
+  }
+
+  public void remove(K key) {
+    String naturalKey = naturalKeys.remove(key);
+    if (naturalKey != null) {
+      primaryKeys.remove(naturalKey, key);
+    }
+  }
+
+  /**
+   * Finds the value with a natural key.
+   *
+   * @param naturalKey the natural key as it was entered, it's normalised before the lookup
+   * @return the primary key of the value or null if no value has the key
+   */
+  public K find(String naturalKey) {
+    String normalised = normalise(naturalKey);
+    return normalised == null ? null : primaryKeys.get(normalised);
+  }
+
+  public int size() {
+    return primaryKeys.size();
+  }
+
+  // Both maps share the key strings, the primary keys are boxed
+  public long estimatedBytes() {
+    return MemoryEstimator.hashMap(primaryKeys.size())
+      + MemoryEstimator.hashMap(naturalKeys.size())
+      + MemoryEstimator.strings(primaryKeys.keySet())
+      + (long) primaryKeys.size() * MemoryEstimator.BOXED;
+  }
+
+  private String normalise(String naturalKey) {
+    if (naturalKey == null) {
+      return null;
+    }
+    String normalised = normaliser.apply(naturalKey);
+    return normalised.isEmpty() ? null : normalised;
+  }
+}
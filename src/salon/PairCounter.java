@@ -0,0 +1,187 @@
+package salon;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Counts occurrences of pairs of int ids, such as stylist and client, in one flat hash table.
+ *
+ * <p>Each pair is packed into a single long key and the table is open addressed with parallel
+ * primitive arrays, so a pair costs 12 bytes of table space rather than the nested maps, Result
+ * objects and value lists a two level Aggregate needs.
+ */
+class PairCounter {
+  // Ids are positive so a key of 0 can never be a real pair
+  private static final long EMPTY = 0;
+  private long[] keys;
+  private int[] counts;
+  private int size = 0;
+
+  PairCounter() {
+    this(16);
+  }
+
+  PairCounter(int expectedPairs) {
+    int capacity = Integer.highestOneBit(Math.max(16, expectedPairs * 2 - 1)) << 1;
+    keys = new long[capacity];
+    counts = new int[capacity];
+  }
+
+  public static long pack(int first, int second) {
+    return ((long) first << 32) | (second & 0xffffffffL);
+  }
+
+  public static int first(long key) {
+    return (int) (key >>> 32);
+  }
+
+  public static int second(long key) {
+    return (int) key;
+  }
+
+  /**
+   * Adds one to the count of a pair.
+   *
+   * @param first the first id of the pair, must be positive
+   * @param second the second id of the pair, must be positive
+   * @return the new count
+   */
+  public int increment(int first, int second) {
+    long key = pack(first, second);
+    int slot = find(keys, key);
+    if (keys[slot] == EMPTY) {
+      keys[slot] = key;
+      if (++size * 2 > keys.length) {
+        resize();
+        slot = find(keys, key);
+      }
+    }
+    return ++counts[slot];
+  }
+
+  public int get(int first, int second) {
+    long key = pack(first, second);
+    int slot = find(keys, key);
+    return keys[slot] == EMPTY ? 0 : counts[slot];
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Gets the counts of every pair with the given first id. This scans the whole table.
+   *
+   * @param first the first id
+   * @return a map of second id to count ordered by second id
+   */
+  public Map<Integer, Integer> get(int first) {
+    Map<Integer, Integer> result = new TreeMap<>();
+    for (int i = 0; i < keys.length; i++) {
+      if (keys[i] != EMPTY && first(keys[i]) == first) {
+        result.put(second(keys[i]), counts[i]);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Gets every count grouped by first id then second id.
+   *
+   * @return a map of first id to a map of second id to count, both ordered by id
+   */
+  public Map<Integer, Map<Integer, Integer>> toMap() {
+    Map<Integer, Map<Integer, Integer>> result = new TreeMap<>();
+    for (int i = 0; i < keys.length; i++) {
+      if (keys[i] != EMPTY) {
+        result
+          .computeIfAbsent(first(keys[i]), id -> new TreeMap<>())
+          .put(second(keys[i]), counts[i]);
+      }
+    }
+    return result;
+  }
+
+  @Override
+  public String toString() {
+    String result = "Data [\n";
+    for (Map.Entry<Integer, Map<Integer, Integer>> entry : toMap().entrySet()) {
+      result += entry.getKey() + ": " + entry.getValue() + " ";
+    }
+    return result + "\n ]";
+  }
+
+  // Linear probing from the key's hash to the slot holding it or the first empty slot
+  private static int find(long[] table, long key) {
+    int mask = table.length - 1;
+    int slot = (int) mix(key) & mask;
+    while (table[slot] != EMPTY && table[slot] != key) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  private void resize() {
+    long[] oldKeys = keys;
+    int[] oldCounts = counts;
+    keys = new long[oldKeys.length * 2];
+    counts = new int[oldKeys.length * 2];
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldKeys[i] != EMPTY) {
+        int slot = find(keys, oldKeys[i]);
+        keys[slot] = oldKeys[i];
+        counts[slot] = oldCounts[i];
+      }
+    }
+  }
+
+  // SplitMix64 finaliser so sequential ids spread across the table
+  static long mix(long value) {
+    value = (value ^ (value >>> 30)) * 0xbf58476d1ce4e5b9L;
+    value = (value ^ (value >>> 27)) * 0x94d049bb133111ebL;
+    return value ^ (value >>> 31);
+  }
+}
+
+
+/**
+ * Estimates the number of distinct values added using a fixed 1KB of registers, within about 3%.
+ */
+class HyperLogLog {
+  private static final int PRECISION = 10;
+  private static final int REGISTERS = 1 << PRECISION;
+  private final byte[] registers = new byte[REGISTERS];
+
+  public void add(long value) {
+    long hash = PairCounter.mix(value);
+    int register = (int) (hash >>> (64 - PRECISION));
+    // Rank of the first set bit in the rest of the hash, the sentinel bit stops it passing 64
+    int rank = Long.numberOfLeadingZeros((hash << PRECISION) | (1L << (PRECISION - 1))) + 1;
+    if (rank > registers[register]) {
+      registers[register] = (byte) rank;
+    }
+  }
+
+  public long estimate() {
+    double sum = 0;
+    int zeros = 0;
+    for (byte register : registers) {
+      sum += 1.0 / (1L << register);
+      if (register == 0) {
+        zeros++;
+      }
+    }
+    double alpha = 0.7213 / (1 + 1.079 / REGISTERS);
+    double estimate = alpha * REGISTERS * REGISTERS / sum;
+    // Linear counting is more accurate while many registers are still empty
+    if (estimate <= 2.5 * REGISTERS && zeros > 0) {
+      estimate = REGISTERS * Math.log((double) REGISTERS / zeros);
+    }
+    return Math.round(estimate);
+  }
+
+  @Override
+  public String toString() {
+    return "~" + estimate();
+  }
+}
@@ -0,0 +1,65 @@
+package salon;
+
+// Normalises phone numbers to their digits and packs them into a long. The top bits hold whether
+// the number started with + and how many digits it has so leading zeros survive the round trip.
+final class PhoneNumber {
+  // Returned by pack when the number has too many or no digits to be packed
+  static final long NOT_PACKED = -1;
+  private static final int MAX_DIGITS = 17;
+  private static final int LENGTH_SHIFT = 57;
+  private static final long PLUS_FLAG = 1L << 62;
+  private static final long VALUE_MASK = (1L << LENGTH_SHIFT) - 1;
+
+  private PhoneNumber() {
+    throw new UnsupportedOperationException("This is a utility class and cannot be instantiated");
+  }
+
+  public static long pack(String phone) {
+    long value = 0;
+    int digits = 0;
+    for (int i = 0; i < phone.length(); i++) {
+      char c = phone.charAt(i);
+      if (c >= '0' && c <= '9') {
+        if (++digits > MAX_DIGITS) {
+          return NOT_PACKED;
+        }
+        value = value * 10 + (c - '0');
+      }
+    }
+    if (digits == 0) {
+      return NOT_PACKED;
+    }
+    long plus = phone.trim().startsWith("+") ? PLUS_FLAG : 0;
+    return plus | ((long) digits << LENGTH_SHIFT) | value;
+  }
+
+  public static String unpack(long packed) {
+    int digits = (int) ((packed & ~PLUS_FLAG) >>> LENGTH_SHIFT);
+    String number = Long.toString(packed & VALUE_MASK);
+    StringBuilder result = new StringBuilder(digits + 1);
+    if ((packed & PLUS_FLAG) != 0) {
+      result.append('+');
+    }
+    for (int i = number.length(); i < digits; i++) {
+      result.append('0');
+    }
+    return result.append(number).toString();
+  }
+
+  // Just the digits, without the regex a replaceAll would compile on every call
+  public static String digits(String phone) {
+    StringBuilder result = new StringBuilder(phone.length());
+    for (int i = 0; i < phone.length(); i++) {
+      char c = phone.charAt(i);
+      if (c >= '0' && c <= '9') {
+        result.append(c);
+      }
+    }
+    return result.toString();
+  }
+
+  public static String normalise(String phone) {
+    long packed = pack(phone);
+    return packed == NOT_PACKED ? phone : unpack(packed);
+  }
+}
@@ -0,0 +1,144 @@
+package salon;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiFunction;
+import java.util.function.BinaryOperator;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+/**
+ * Builds a filter, group by, reduce, order by and limit query over the values of a tree.
+ *
+ * <p>Unlike chaining aggregate calls the query runs in a single pass over the values. Each group
+ * only keeps its reduced value, never a list of the values in it, and ordering with a limit uses a
+ * bounded heap over the groups. Queries can also be run in parallel, in which case the reduction
+ * needs a combiner to merge the partial results of each thread.
+ *
+ * @param <S> the type of values in the tree
+ */
+class Query<S> {
+  // Below this many values splitting them between threads costs more than it saves
+  private static final int PARALLEL_THRESHOLD = 10_000;
+  private final Collection<S> values;
+  private Predicate<S> condition = value -> true;
+  private boolean parallel = false;
+
+  Query(Collection<S> values) {
+    this.values = values;
+  }
+
+  public Query<S> filter(Predicate<S> condition) {
+    this.condition = this.condition.and(condition);
+    return this;
+  }
+
+  // Split the values between threads once there are enough of them
+  public Query<S> parallel() {
+    this.parallel = true;
+    return this;
+  }
+
+  public <GK> GroupedQuery<S, GK> groupBy(Function<S, GK> getGroupByKey) {
+    return new GroupedQuery<>(this, getGroupByKey);
+  }
+
+  // Reduce every value into a single group with a null key
+  public <R> ReducedQuery<Void, R> reduce(
+    R identity, BiFunction<R, S, R> accumulator, BinaryOperator<R> combiner) {
+    return new GroupedQuery<S, Void>(this, value -> null).reduce(identity, accumulator, combiner);
+  }
+
+  Stream<S> stream() {
+    Stream<S> stream =
+      parallel && values.size() >= PARALLEL_THRESHOLD ? values.parallelStream() : values.stream();
+    return stream.filter(condition);
+  }
+}
+
+
+class GroupedQuery<S, GK> {
+  private final Query<S> query;
+  private final Function<S, GK> getGroupByKey;
+
+  GroupedQuery(Query<S> query, Function<S, GK> getGroupByKey) {
+    this.query = query;
+    this.getGroupByKey = getGroupByKey;
+  }
+
+  /**
+   * Reduces the values of each group.
+   *
+   * @param identity the starting value of each group, must be an identity for the combiner
+   * @param accumulator function to add a value to a group's result
+   * @param combiner function to merge two partial results of a group when run in parallel
+   * @param <R> the type of the result of each group
+   * @return the query with its reduction set
+   */
+  public <R> ReducedQuery<GK, R> reduce(
+    R identity, BiFunction<R, S, R> accumulator, BinaryOperator<R> combiner) {
+    return new ReducedQuery<>(
+      () -> query
+        .stream()
+        .collect(
+          HashMap<GK, R>::new,
+          (groups, value) -> {
+            GK key = getGroupByKey.apply(value);
+            R result = groups.containsKey(key) ? groups.get(key) : identity;
+            groups.put(key, accumulator.apply(result, value));
+          },
+          (left, right) -> right.forEach((key, result) -> left.merge(key, result, combiner))));
+  }
+}
+
+
+class ReducedQuery<GK, R> {
+  private final Supplier<Map<GK, R>> groups;
+  private Comparator<Map.Entry<GK, R>> order;
+  private int limit = Integer.MAX_VALUE;
+
+  ReducedQuery(Supplier<Map<GK, R>> groups) {
+    this.groups = groups;
+  }
+
+  public ReducedQuery<GK, R> orderBy(Comparator<Map.Entry<GK, R>> order) {
+    this.order = order;
+    return this;
+  }
+
+  public ReducedQuery<GK, R> limit(int limit) {
+    this.limit = limit;
+    return this;
+  }
+
+  /**
+   * Runs the query.
+   *
+   * @return each group's key and result, in order if an order was given
+   */
+  public List<Map.Entry<GK, R>> run() {
+    Collection<Map.Entry<GK, R>> results = groups.get().entrySet();
+    if (order == null) {
+      List<Map.Entry<GK, R>> unordered = new ArrayList<>(results);
+      return unordered.subList(0, Math.min(limit, unordered.size()));
+    } else if (limit < results.size()) {
+      return MapUtilities.bottomK(results, limit, order);
+    }
+    List<Map.Entry<GK, R>> ordered = new ArrayList<>(results);
+    ordered.sort(order);
+    return ordered;
+  }
+
+  // Runs the query returning the first group, or null if there are no groups
+  public Map.Entry<GK, R> first() {
+    limit(1);
+    List<Map.Entry<GK, R>> results = run();
+    return results.isEmpty() ? null : results.get(0);
+  }
+}
@@ -0,0 +1,148 @@
+package salon;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Supplier;
+
+/**
+ * Size bounded cache of query results that are thrown away once the trees they read change.
+ *
+ * <p>Each result is stored with the version of every tree the query reads at the time it was
+ * computed. A lookup compares those against the trees' current versions, so nothing has to be
+ * told about writes and a result is reused for as long as none of its trees have changed. The
+ * least recently used result is evicted once the cache is full.
+ *
+ * <p>Queries run outside the cache's lock so different queries missing at the same time run at
+ * the same time. A result is stored as a future before its query runs, so a second caller asking
+ * for the same result while it's being worked out waits for it rather than running it again.
+ *
+ * <p>Results are shared between callers so they must not be modified.
+ */
+class QueryCache {
+  private final Map<List<Object>, CachedResult> results;
+  private long hits = 0;
+  private long misses = 0;
+  private long stale = 0;
+  private long evictions = 0;
+
+  private static class CachedResult {
+    private final long[] versions;
+    private final CompletableFuture<Object> result = new CompletableFuture<>();
+
+    CachedResult(long[] versions) {
+      this.versions = versions;
+    }
+  }
+
+  QueryCache(int maxEntries) {
+    // Access order so the eldest entry is the least recently used
+    results =
+      new LinkedHashMap<>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<List<Object>, CachedResult> eldest) {
+          if (size() > maxEntries) {
+            evictions++;
+            return true;
+          }
+          return false;
+        }
+      };
+  }
+
+  /**
+   * Gets the result of a query, running it if there is no result yet or the trees it reads have
+   * changed since.
+   *
+   * @param query the result of the query when it has to be run
+   * @param trees the trees the query reads
+   * @param name the name of the query
+   * @param params the parameters of the query, may contain nulls
+   * @param <R> the type of the result
+   * @return the cached or new result
+   */
+  @SuppressWarnings("unchecked")
+  public <R> R get(Supplier<R> query, List<RBTree<?, ?>> trees, String name, Object... params) {
+    List<Object> key = Arrays.asList(prepend(name, params));
+    long[] versions = new long[trees.size()];
+    for (int i = 0; i < versions.length; i++) {
+      versions[i] = trees.get(i).getVersion();
+    }
+    CachedResult cached;
+    CachedResult computing = null;
+    synchronized (this) {
+      cached = results.get(key);
+      if (cached != null && Arrays.equals(cached.versions, versions)) {
+        hits++;
+      } else {
+        misses++;
+        if (cached != null) {
+          stale++;
+        }
+        computing = new CachedResult(versions);
+        results.put(key, computing);
+      }
+    }
+    if (computing == null) {
+      // The result may still be being worked out by another caller
+      return (R) join(cached);
+    }
+    try {
+      R result = query.get();
+      computing.result.complete(result);
+      return result;
+    } catch (RuntimeException | Error e) {
+      // Callers already waiting get the failure, later ones run the query again
+      computing.result.completeExceptionally(e);
+      synchronized (this) {
+        results.remove(key, computing);
+      }
+      throw e;
+    }
+  }
+
+  public synchronized void clear() {
+    results.clear();
+  }
+
+  @Override
+  public synchronized String toString() {
+    long lookups = hits + misses;
+    return "Query cache: "
+      + results.size()
+      + " results, "
+      + hits
+      + " hits, "
+      + misses
+      + " misses ("
+      + stale
+      + " after a change), "
+      + evictions
+      + " evictions, hit rate "
+      + (lookups == 0 ? 0 : Math.round(hits * 100.0 / lookups))
+      + "%";
+  }
+
+  private static Object join(CachedResult cached) {
+    try {
+      return cached.result.join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw e;
+    }
+  }
+
+  private static Object[] prepend(String name, Object[] params) {
+    Object[] key = new Object[params.length + 1];
+    key[0] = name;
+    System.arraycopy(params, 0, key, 1, params.length);
+    return key;
+  }
+}
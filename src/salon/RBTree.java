@@ -1,10 +1,13 @@
 package salon;
 
 import java.util.AbstractMap;
+import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.function.Function;
 import java.util.function.Predicate;
 
@@ -22,6 +25,15 @@ class IndexTree<PK extends Comparable<? super PK>, IK extends Comparable<? super
   // map of index key to primary key
   // Requires the index value to also be unique
   private Map<String, PK> keyMap = new HashMap<>();
+  // map of primary key to the index key its value is stored under, so an entry can be found again
+  // after its value has been changed in place
+  private Map<PK, String> indexKeys = new HashMap<>();
+  // A quiet index is read from a frozen copy which is rebuilt once this many reads in a row found
+  // it out of date, so indexes that are written as often as they are read stay on the tree
+  private static final int FREEZE_AFTER_READS = 8;
+  private long modifications = 0;
+  private int staleReads = 0;
+  private transient volatile FrozenIndex<S> frozen;
 
   /**
    * Constructs an IndexTree with a key extractor and a comparator.
@@ -61,15 +73,141 @@ class IndexTree<PK extends Comparable<? super PK>, IK extends Comparable<? super
   public PK setPrimaryKey(String indexKey, PK primaryKey) {
     return keyMap.put(indexKey, primaryKey);
   }
+
+  public String getIndexKey(PK primaryKey) {
+    return indexKeys.get(primaryKey);
+  }
+
+  public String setIndexKey(PK primaryKey, String indexKey) {
+    return indexKeys.put(primaryKey, indexKey);
+  }
+
+  public String removeIndexKey(PK primaryKey) {
+    return indexKeys.remove(primaryKey);
+  }
+
+  public int keyMapSize() {
+    return keyMap.size();
+  }
+
+  // The tree's entries and index key strings, the values are shared with the primary store
+  public long estimatedBytes() {
+    return MemoryEstimator.treeMap(size()) + MemoryEstimator.strings(keySet());
+  }
+
+  public long estimatedKeyMapBytes() {
+    return MemoryEstimator.hashMap(keyMap.size())
+      + MemoryEstimator.strings(keyMap.keySet())
+      + (long) keyMap.size() * MemoryEstimator.BOXED;
+  }
+
+  // The index key strings are the ones in the tree so only the boxed primary keys are extra
+  public long estimatedIndexKeysBytes() {
+    return MemoryEstimator.hashMap(indexKeys.size())
+      + (long) indexKeys.size() * MemoryEstimator.BOXED;
+  }
+
+  // Nothing if the index hasn't been frozen
+  public long estimatedFrozenBytes() {
+    FrozenIndex<S> snapshot = frozen;
+    return snapshot == null ? 0 : snapshot.estimatedBytes();
+  }
+
+  public int frozenSize() {
+    FrozenIndex<S> snapshot = frozen;
+    return snapshot == null ? 0 : snapshot.size();
+  }
+
+  @Override
+  public S put(String indexKey, S value) {
+    changed();
+    return super.put(indexKey, value);
+  }
+
+  @Override
+  public void putAll(Map<? extends String, ? extends S> map) {
+    changed();
+    super.putAll(map);
+  }
+
+  @Override
+  public S remove(Object indexKey) {
+    changed();
+    return super.remove(indexKey);
+  }
+
+  @Override
+  public void clear() {
+    changed();
+    super.clear();
+  }
+
+  /**
+   * Gets an up to date frozen copy of the index, building it if the index has changed.
+   *
+   * @return the frozen copy
+   */
+  public FrozenIndex<S> freeze() {
+    FrozenIndex<S> snapshot = frozen;
+    if (snapshot == null || snapshot.getVersion() != modifications) {
+      snapshot = new FrozenIndex<>(this, modifications);
+      frozen = snapshot;
+    }
+    return snapshot;
+  }
+
+  // Look up a full index key, using the frozen copy when it's up to date
+  public S find(String indexKey) {
+    FrozenIndex<S> snapshot = readableSnapshot();
+    return snapshot == null ? get(indexKey) : snapshot.get(indexKey);
+  }
+
+  // Values with index keys from fromKey inclusive to toKey exclusive in index order
+  public List<S> range(String fromKey, String toKey) {
+    FrozenIndex<S> snapshot = readableSnapshot();
+    return snapshot == null
+      ? new ArrayList<>(subMap(fromKey, toKey).values())
+      : snapshot.range(fromKey, toKey);
+  }
+
+  private FrozenIndex<S> readableSnapshot() {
+    FrozenIndex<S> snapshot = frozen;
+    if (snapshot != null && snapshot.getVersion() == modifications) {
+      return snapshot;
+    }
+    return ++staleReads >= FREEZE_AFTER_READS ? freeze() : null;
+  }
+
+  private void changed() {
+    modifications++;
+    staleReads = 0;
+  }
 }
 
 
 class RBTree<K extends Comparable<? super K>, V extends HasPrimaryKey<K>>
   extends AbstarctTree<K, V> {
   private Map<String, IndexTree<?, ?, V>> indexes = new HashMap<>();
+  private Map<String, SearchIndex<K, V>> searchIndexes = new HashMap<>();
+  private Map<String, NaturalKeyIndex<K, V>> naturalKeyIndexes = new HashMap<>();
+  private List<ChangeListener<K, V>> listeners = new CopyOnWriteArrayList<>();
+  private ChangeFeed changeFeed;
+  // Goes up on every write so cached query results can tell the tree has changed
+  private volatile long version = 0;
 
   RBTree() {
-    super(new TreeMap<>());
+    this(null, null);
+  }
+
+  // Trees sharing a change feed have their events delivered in the order they were written
+  RBTree(String name, ChangeFeed changeFeed) {
+    this(name, new TreeMap<>(), changeFeed);
+  }
+
+  // The primary store can be swapped for one suited to the keys, such as a BPlusTree for ids
+  RBTree(String name, Map<K, V> primaryStore, ChangeFeed changeFeed) {
+    super(name, primaryStore);
+    this.changeFeed = changeFeed;
   }
 
   public V get(K key) {
@@ -82,41 +220,127 @@ class RBTree<K extends Comparable<? super K>, V extends HasPrimaryKey<K>>
   public <PK extends Comparable<? super PK>, IK extends Comparable<? super IK>> V get(
     IK key, String indexName) {
     IndexTree<PK, IK, V> index = this.getIndex(indexName);
-    return index.get(key + "-" + index.getPrimaryKey(key));
+    return index.find(key + "-" + index.getPrimaryKey(key));
   }
 
   public V add(V value) {
+    TreeAddEvent event = new TreeAddEvent();
+    event.start(getName());
     K key = value.getPrimaryKey();
     V oldValue = this.getPrimaryStore().put(key, value);
+    version++;
+    for (String indexName : indexes.keySet()) {
+      updateIndex(indexName, key, oldValue, value);
+    }
+    for (SearchIndex<K, V> searchIndex : searchIndexes.values()) {
+      searchIndex.update(key, value);
+    }
+    for (NaturalKeyIndex<K, V> naturalKeyIndex : naturalKeyIndexes.values()) {
+      naturalKeyIndex.update(key, value);
+    }
+    // Nothing is queued until someone is listening
+    if (!listeners.isEmpty()) {
+      changeFeed.publish(listeners, new ChangeEvent<>(key, oldValue, value));
+    }
+    event.finish(
+      this.getPrimaryStore().size(),
+      indexes.size() + searchIndexes.size() + naturalKeyIndexes.size(),
+      oldValue != null);
+    return oldValue;
+  }
+
+  /**
+   * Removes a value and its entries in every index.
+   *
+   * @param key the primary key of the value
+   * @return the removed value or null if there was none
+   */
+  public V remove(K key) {
+    V oldValue = this.getPrimaryStore().remove(key);
+    if (oldValue == null) {
+      return null;
+    }
+    version++;
     for (String indexName : indexes.keySet()) {
-      updateIndex(
-        indexName,
-        new AbstractMap.SimpleEntry<K, V>(key, oldValue),
-        new AbstractMap.SimpleEntry<K, V>(key, value));
+      removeFromIndex(indexName, key);
+    }
+    for (SearchIndex<K, V> searchIndex : searchIndexes.values()) {
+      searchIndex.remove(key);
+    }
+    for (NaturalKeyIndex<K, V> naturalKeyIndex : naturalKeyIndexes.values()) {
+      naturalKeyIndex.remove(key);
+    }
+    if (!listeners.isEmpty()) {
+      changeFeed.publish(listeners, new ChangeEvent<>(key, oldValue, null));
     }
     return oldValue;
   }
 
+  // Listen for inserts, updates and deletes, called on the change feed's thread after the write
+  public void subscribe(ChangeListener<K, V> listener) {
+    if (changeFeed == null) {
+      changeFeed = new ChangeFeed(1024);
+    }
+    listeners.add(listener);
+  }
+
+  public void unsubscribe(ChangeListener<K, V> listener) {
+    listeners.remove(listener);
+  }
+
+  public long getVersion() {
+    return version;
+  }
+
+  public ChangeFeed getChangeFeed() {
+    return changeFeed;
+  }
+
   @SuppressWarnings("unchecked")
-  private <PK extends Comparable<? super PK>, IK extends Comparable<? super IK>> void updateIndex(
-    String indexName, Map.Entry<PK, V> oldValueEntry, Map.Entry<PK, V> newValueEntry) {
-    IndexTree<PK, IK, V> index = (IndexTree<PK, IK, V>) indexes.get(indexName);
-    Function<Map.Entry<PK, V>, String> keyExtractor = index.getKeyExtractor();
-    String indexKey = keyExtractor.apply(newValueEntry);
-    // The calculated key should not change so index.remove is not really doing anything right now
-    // I do have the primary key after the index key to make it unique but thats kind of pointless
-    // right now
-    if (oldValueEntry.getValue() != null) {
-      index.remove(keyExtractor.apply(oldValueEntry));
+  private <IK extends Comparable<? super IK>> void updateIndex(
+    String indexName, K key, V oldValue, V value) {
+    IndexTree<K, IK, V> index = (IndexTree<K, IK, V>) indexes.get(indexName);
+    IndexUpdateEvent event = new IndexUpdateEvent();
+    event.start(getName());
+    String indexKey = index.getKeyExtractor().apply(new AbstractMap.SimpleEntry<K, V>(key, value));
+    // Entities are changed in place before they are added again so the old key can't be worked
+    // out from the old value, the index remembers it instead
+    String previousKey = index.getIndexKey(key);
+    if (indexKey.equals(previousKey)) {
+      // The entry is already in the right place, only a new object needs storing
+      if (oldValue != value) {
+        index.put(indexKey, value);
+      }
+      event.finish(indexName, index.size(), false);
+      return;
+    }
+    if (previousKey != null) {
+      index.remove(previousKey);
     } else { // this is the first entry so set the key map
-      index.setPrimaryKey(indexKey.replaceAll("-\\d+$", ""), newValueEntry.getKey());
+      index.setPrimaryKey(indexKey.replaceAll("-\\d+$", ""), key);
+    }
+    index.put(indexKey, value);
+    index.setIndexKey(key, indexKey);
+    event.finish(indexName, index.size(), true);
+  }
+
+  @SuppressWarnings("unchecked")
+  private void removeFromIndex(String indexName, K key) {
+    IndexTree<K, ?, V> index = (IndexTree<K, ?, V>) indexes.get(indexName);
+    String indexKey = index.removeIndexKey(key);
+    if (indexKey != null) {
+      index.remove(indexKey);
     }
-    index.put(indexKey, newValueEntry.getValue());
   }
 
   @SuppressWarnings("unchecked")
   public <MK extends Comparable<? super MK>, KK extends Comparable<? super KK>> IndexTree<MK, KK, V> saveIndex(
     IndexTree<MK, KK, V> index, String indexName) {
+    // Remember where each value already in the index is stored so later updates can find it
+    IndexTree<K, KK, V> keyedIndex = (IndexTree<K, KK, V>) (IndexTree<?, KK, V>) index;
+    for (Map.Entry<K, V> entry : this.getPrimaryStore().entrySet()) {
+      keyedIndex.setIndexKey(entry.getKey(), keyedIndex.getKeyExtractor().apply(entry));
+    }
     return (IndexTree<MK, KK, V>) indexes.put(indexName, index);
   }
 
@@ -127,13 +351,105 @@ class RBTree<K extends Comparable<? super K>, V extends HasPrimaryKey<K>>
     return (IndexTree<MK, KK, V>) indexes.get(indexName);
   }
 
+  // Save a search index, indexing the values already in the tree
+  public SearchIndex<K, V> saveSearchIndex(SearchIndex<K, V> searchIndex, String indexName) {
+    for (Map.Entry<K, V> entry : this.getPrimaryStore().entrySet()) {
+      searchIndex.update(entry.getKey(), entry.getValue());
+    }
+    return searchIndexes.put(indexName, searchIndex);
+  }
+
+  public SearchIndex<K, V> getSearchIndex(String indexName) {
+    return searchIndexes.get(indexName);
+  }
+
+  // Save a natural key index, indexing the values already in the tree
+  public NaturalKeyIndex<K, V> saveNaturalKeyIndex(
+    NaturalKeyIndex<K, V> naturalKeyIndex, String indexName) {
+    for (Map.Entry<K, V> entry : this.getPrimaryStore().entrySet()) {
+      naturalKeyIndex.update(entry.getKey(), entry.getValue());
+    }
+    return naturalKeyIndexes.put(indexName, naturalKeyIndex);
+  }
+
+  public NaturalKeyIndex<K, V> getNaturalKeyIndex(String indexName) {
+    return naturalKeyIndexes.get(indexName);
+  }
+
+  // The value with a natural key or null if there isn't one, the key is normalised by the index
+  public V findByNaturalKey(String naturalKey, String indexName) {
+    K key = getNaturalKeyIndex(indexName).find(naturalKey);
+    return key == null ? null : get(key);
+  }
+
+  // Search a search index, returning the best matching values first
+  public List<V> search(String text, String indexName, int limit) {
+    List<V> result = new ArrayList<>();
+    for (K key : getSearchIndex(indexName).search(text, limit)) {
+      result.add(get(key));
+    }
+    return result;
+  }
+
+  /**
+   * Estimates the memory held by the tree, each of its indexes and their side maps. Values are
+   * counted once with the primary store as the indexes only refer to them.
+   *
+   * @return a row for each structure
+   */
+  public List<StructureStats> memoryStats() {
+    String name = getName();
+    Map<K, V> store = getPrimaryStore();
+    List<StructureStats> stats = new ArrayList<>();
+    long storeBytes =
+      store instanceof BPlusTree
+        ? ((BPlusTree<?>) store).estimatedBytes()
+        : MemoryEstimator.treeMap(store.size())
+          + (long) store.size() * MemoryEstimator.BOXED;
+    stats.add(new StructureStats(name, "primary store", store.size(), storeBytes));
+    stats.add(
+      new StructureStats(name, "values", store.size(), MemoryEstimator.values(store.values())));
+    for (Map.Entry<String, IndexTree<?, ?, V>> entry : indexes.entrySet()) {
+      IndexTree<?, ?, V> index = entry.getValue();
+      String indexName = entry.getKey();
+      stats.add(new StructureStats(name, indexName, index.size(), index.estimatedBytes()));
+      stats.add(
+        new StructureStats(
+          name, indexName + " key map", index.keyMapSize(), index.estimatedKeyMapBytes()));
+      stats.add(
+        new StructureStats(
+          name, indexName + " index keys", index.size(), index.estimatedIndexKeysBytes()));
+      if (index.frozenSize() > 0) {
+        stats.add(
+          new StructureStats(
+            name, indexName + " frozen copy", index.frozenSize(), index.estimatedFrozenBytes()));
+      }
+    }
+    for (Map.Entry<String, SearchIndex<K, V>> entry : searchIndexes.entrySet()) {
+      SearchIndex<K, V> searchIndex = entry.getValue();
+      stats.add(
+        new StructureStats(
+          name, entry.getKey(), searchIndex.size(), searchIndex.estimatedBytes()));
+    }
+    for (Map.Entry<String, NaturalKeyIndex<K, V>> entry : naturalKeyIndexes.entrySet()) {
+      NaturalKeyIndex<K, V> naturalKeyIndex = entry.getValue();
+      stats.add(
+        new StructureStats(
+          name, entry.getKey(), naturalKeyIndex.size(), naturalKeyIndex.estimatedBytes()));
+    }
+    return stats;
+  }
+
   public RBTree<K, V> filter(Predicate<V> condition) {
-    RBTree<K, V> filteredMap = new RBTree<>();
+    FilterEvent event = new FilterEvent();
+    event.start(getName());
+    RBTree<K, V> filteredMap = new RBTree<>(getName() + " filter", null);
     for (V value : this.getPrimaryStore().values()) {
       if (condition.test(value)) {
         filteredMap.add(value);
       }
     }
+    event.finish(this.getPrimaryStore().size(), filteredMap.getPrimaryStore().size());
     return filteredMap;
   }
 }
@@ -0,0 +1,441 @@
+package salon;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+enum ReportFormat {
+  TEXT,
+  CSV,
+  JSON;
+
+  static ReportFormat parse(String name) {
+    return valueOf(name.toUpperCase(Locale.ROOT));
+  }
+}
+
+
+/**
+ * The columns of a report table, set up once per type of row and reused for every row rendered.
+ *
+ * <p>The text header and the CSV header are built as each column is added, so rendering a row only
+ * appends its cells to the caller's buffer. Numbers are appended without making a string first
+ * and padding is worked out from how far the buffer grew, which avoids the format string parsing
+ * and intermediate strings of String.format.
+ *
+ * @param <T> the type of rows in the table
+ */
+class TableLayout<T> {
+  private static final String NEW_LINE = System.lineSeparator();
+  private static final String SPACES = " ".repeat(64);
+  private final List<Column<T>> columns = new ArrayList<>();
+  private String textHeader = "";
+  private String csvHeader = "";
+
+  private static final class Column<T> {
+    private final String title;
+    private final String key;
+    private final int width;
+    private final Function<T, ?> value;
+    private final boolean money;
+
+    Column(String title, String key, int width, Function<T, ?> value, boolean money) {
+      this.title = title;
+      this.key = key;
+      this.width = width;
+      this.value = value;
+      this.money = money;
+    }
+  }
+
+  /**
+   * Adds a column.
+   *
+   * @param title the column heading in text and CSV output
+   * @param key the field name in JSON output
+   * @param width the least number of characters the cell takes in text output
+   * @param value gets the cell's value from a row
+   * @return this layout
+   */
+  public TableLayout<T> column(String title, String key, int width, Function<T, ?> value) {
+    return add(new Column<>(title, key, width, value, false));
+  }
+
+  // A whole pounds amount, shown as currency in text output and as a plain number otherwise
+  public TableLayout<T> money(String title, String key, int width, Function<T, Integer> value) {
+    return add(new Column<>(title, key, width, value, true));
+  }
+
+  /**
+   * Adds every column of another layout, reading their values from part of the row.
+   *
+   * @param layout the layout to copy the columns from
+   * @param part gets the other layout's row from a row of this one
+   * @param <U> the type of rows in the other layout
+   * @return this layout
+   */
+  public <U> TableLayout<T> columns(TableLayout<U> layout, Function<T, U> part) {
+    for (Column<U> column : layout.columns) {
+      add(
+        new Column<T>(
+          column.title,
+          column.key,
+          column.width,
+          row -> column.value.apply(part.apply(row)),
+          column.money));
+    }
+    return this;
+  }
+
+  public String header() {
+    return textHeader;
+  }
+
+  // The row on its own as a text table line
+  public String row(T row) {
+    StringBuilder out = new StringBuilder(textHeader.length());
+    appendText(out, row);
+    return out.toString();
+  }
+
+  public void appendText(StringBuilder out, T row) {
+    out.append("   |");
+    for (Column<T> column : columns) {
+      out.append(' ');
+      int start = out.length();
+      Object value = column.value.apply(row);
+      if (column.money && value != null) {
+        out.append(MyUtilities.displayInPounds((Integer) value, 1));
+      } else {
+        appendPlain(out, value);
+      }
+      pad(out, column.width - (out.length() - start));
+      out.append(" |");
+    }
+    out.append(NEW_LINE);
+  }
+
+  public void appendCsvHeader(StringBuilder out) {
+    out.append(csvHeader);
+  }
+
+  public void appendCsv(StringBuilder out, T row) {
+    for (int i = 0; i < columns.size(); i++) {
+      if (i > 0) {
+        out.append(',');
+      }
+      Object value = columns.get(i).value.apply(row);
+      if (value instanceof Number || value == null) {
+        appendPlain(out, value);
+      } else {
+        appendCsvField(out, value instanceof Object[] ? Arrays.toString((Object[]) value) : value);
+      }
+    }
+    out.append(NEW_LINE);
+  }
+
+  public void appendJson(StringBuilder out, T row) {
+    out.append('{');
+    for (int i = 0; i < columns.size(); i++) {
+      if (i > 0) {
+        out.append(", ");
+      }
+      Column<T> column = columns.get(i);
+      appendJsonString(out, column.key);
+      out.append(": ");
+      appendJsonValue(out, column.value.apply(row));
+    }
+    out.append('}');
+  }
+
+  static void appendJsonString(StringBuilder out, Object value) {
+    String text = value.toString();
+    out.append('"');
+    for (int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      if (c == '"' || c == '\\') {
+        out.append('\\').append(c);
+      } else if (c < 0x20) {
+        out.append(String.format("\\u%04x", (int) c));
+      } else {
+        out.append(c);
+      }
+    }
+    out.append('"');
+  }
+
+  private TableLayout<T> add(Column<T> column) {
+    columns.add(column);
+    StringBuilder text = new StringBuilder("   |");
+    StringBuilder csv = new StringBuilder();
+    for (Column<T> each : columns) {
+      text.append(' ').append(each.title);
+      pad(text, each.width - each.title.length());
+      text.append(" |");
+      if (csv.length() > 0) {
+        csv.append(',');
+      }
+      appendCsvField(csv, each.title);
+    }
+    textHeader = text.append(NEW_LINE).toString();
+    csvHeader = csv.append(NEW_LINE).toString();
+    return this;
+  }
+
+  private static void appendPlain(StringBuilder out, Object value) {
+    if (value instanceof Integer) {
+      out.append(((Integer) value).intValue());
+    } else if (value instanceof Long) {
+      out.append(((Long) value).longValue());
+    } else if (value instanceof Object[]) {
+      out.append(Arrays.toString((Object[]) value));
+    } else {
+      out.append(value);
+    }
+  }
+
+  private static void appendJsonValue(StringBuilder out, Object value) {
+    if (value == null || value instanceof Number || value instanceof Boolean) {
+      appendPlain(out, value);
+    } else if (value instanceof Object[]) {
+      Object[] values = (Object[]) value;
+      out.append('[');
+      for (int i = 0; i < values.length; i++) {
+        if (i > 0) {
+          out.append(", ");
+        }
+        appendJsonValue(out, values[i]);
+      }
+      out.append(']');
+    } else {
+      appendJsonString(out, value);
+    }
+  }
+
+  // Quote fields with separators, quotes or line breaks in them and double any quotes
+  private static void appendCsvField(StringBuilder out, Object value) {
+    String text = value.toString();
+    boolean quote = false;
+    for (int i = 0; i < text.length() && !quote; i++) {
+      char c = text.charAt(i);
+      quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+    }
+    if (!quote) {
+      out.append(text);
+      return;
+    }
+    out.append('"');
+    for (int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      if (c == '"') {
+        out.append('"');
+      }
+      out.append(c);
+    }
+    out.append('"');
+  }
+
+  private static void pad(StringBuilder out, int count) {
+    while (count > 0) {
+      int chunk = Math.min(count, SPACES.length());
+      out.append(SPACES, 0, chunk);
+      count -= chunk;
+    }
+  }
+}
+
+
+/**
+ * Writes the sections of a query's output as a text table, CSV or JSON.
+ *
+ * <p>Everything is rendered into one buffer that is reused for the whole report and only written
+ * to the stream when it gets large and at the end, so a big report costs a few large writes rather
+ * than a print per line. JSON output is a single object with a field per section, and CSV output
+ * starts each section with its title on a line of its own and a blank line between sections.
+ */
+class ReportWriter {
+  private static final String NEW_LINE = System.lineSeparator();
+  // Buffered characters that trigger a write to the stream
+  private static final int FLUSH_AT = 1 << 16;
+  private final PrintStream out;
+  private final ReportFormat format;
+  private final StringBuilder buffer = new StringBuilder(FLUSH_AT + 1024);
+  private int sections = 0;
+
+  ReportWriter(PrintStream out, ReportFormat format) {
+    this.out = out;
+    this.format = format;
+  }
+
+  public ReportFormat getFormat() {
+    return format;
+  }
+
+  // Explains the output to a person reading it so it is only in text output
+  public void notice(String text) {
+    if (format == ReportFormat.TEXT) {
+      buffer.append("NOTICE: ").append(text).append(NEW_LINE);
+    }
+  }
+
+  // A section that is a single line rather than a table
+  public void message(String title, String text) {
+    switch (format) {
+      case TEXT:
+        buffer.append(title).append(NEW_LINE).append(text).append(NEW_LINE);
+        break;
+      case CSV:
+        startCsvSection(title);
+        buffer.append(text).append(NEW_LINE);
+        break;
+      case JSON:
+        startJsonSection(title);
+        TableLayout.appendJsonString(buffer, text);
+        break;
+    }
+    flushIfFull();
+  }
+
+  /**
+   * Writes a section as a table.
+   *
+   * @param title the title of the section
+   * @param layout the columns of the table
+   * @param rows the rows in the order to show them
+   * @param <T> the type of rows
+   */
+  public <T> void table(String title, TableLayout<T> layout, Iterable<? extends T> rows) {
+    switch (format) {
+      case TEXT:
+        buffer.append(title).append(NEW_LINE);
+        boolean empty = true;
+        for (T row : rows) {
+          if (empty) {
+            buffer.append(layout.header());
+            empty = false;
+          }
+          layout.appendText(buffer, row);
+          flushIfFull();
+        }
+        if (empty) {
+          buffer.append("No matches").append(NEW_LINE);
+        }
+        break;
+      case CSV:
+        startCsvSection(title);
+        layout.appendCsvHeader(buffer);
+        for (T row : rows) {
+          layout.appendCsv(buffer, row);
+          flushIfFull();
+        }
+        break;
+      case JSON:
+        startJsonSection(title);
+        buffer.append('[');
+        boolean first = true;
+        for (T row : rows) {
+          buffer.append(first ? "" : ",").append(NEW_LINE).append("    ");
+          layout.appendJson(buffer, row);
+          first = false;
+          flushIfFull();
+        }
+        buffer.append(first ? "]" : NEW_LINE + "  ]");
+        break;
+    }
+    flushIfFull();
+  }
+
+  // Closes the JSON object and writes whatever is left in the buffer
+  public void finish() {
+    if (format == ReportFormat.JSON) {
+      buffer.append(sections == 0 ? "{" : NEW_LINE).append('}').append(NEW_LINE);
+    }
+    flush();
+    sections = 0;
+  }
+
+  private void startCsvSection(String title) {
+    if (sections++ > 0) {
+      buffer.append(NEW_LINE);
+    }
+    buffer.append(title).append(NEW_LINE);
+  }
+
+  private void startJsonSection(String title) {
+    buffer.append(sections++ == 0 ? "{" : ",").append(NEW_LINE).append("  ");
+    TableLayout.appendJsonString(buffer, title);
+    buffer.append(": ");
+  }
+
+  private void flushIfFull() {
+    if (buffer.length() >= FLUSH_AT) {
+      flush();
+    }
+  }
+
+  private void flush() {
+    out.append(buffer);
+    out.flush();
+    buffer.setLength(0);
+  }
+}
+
+
+/**
+ * Sections of a report that are worked out in parallel and written in the order they were added.
+ *
+ * <p>Each section is a query run on the executor that returns how to write its result, so the
+ * slow part of every section runs at the same time and only the writing, which is cheap and has to
+ * be in order, happens on the calling thread. The caller is expected to stop writes to the data
+ * the sections read until writeTo returns, which is why writeTo waits for every section to finish
+ * even when an earlier one has failed.
+ */
+class ReportSections {
+  private final Executor executor;
+  private final List<CompletableFuture<Consumer<ReportWriter>>> sections = new ArrayList<>();
+
+  ReportSections(Executor executor) {
+    this.executor = executor;
+  }
+
+  /**
+   * Starts working out a section.
+   *
+   * @param section runs the section's query and returns how to write the result
+   */
+  public void add(Supplier<Consumer<ReportWriter>> section) {
+    sections.add(CompletableFuture.supplyAsync(section, executor));
+  }
+
+  /**
+   * Writes every section in order. Sections before one that failed are written and the failure is
+   * thrown as it was thrown by the section.
+   *
+   * @param report where to write the sections
+   */
+  public void writeTo(ReportWriter report) {
+    CompletableFuture.allOf(sections.toArray(new CompletableFuture<?>[0]))
+      .handle((done, failure) -> null)
+      .join();
+    try {
+      for (CompletableFuture<Consumer<ReportWriter>> section : sections) {
+        section.join().accept(report);
+      }
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw e;
+    } finally {
+      sections.clear();
+    }
+  }
+}
@@ -1,9 +1,21 @@
 package salon;
 
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.AbstractMap;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -14,31 +26,105 @@ import org.apache.commons.cli.HelpFormatter;
 import org.apache.commons.cli.Option;
 import org.apache.commons.cli.Options;
 
-// StringBuilder report = new StringBuilder();
-
 public class Salon {
-  static SalonData salonData = new SalonData();
+  // Each branch of the salon has its own data, salonData is the branch commands currently run on
+  static SalonRouter router = new SalonRouter();
+  static SalonData salonData = router.addBranch("main");
+  // Only one of these is set when running as a replication leader or follower
+  static MutationLog mutationLog;
+  static LogFollower follower;
+  // Most results shown by a search when no limit is given
+  static final int SEARCH_LIMIT = 5;
+  // Works out the sections of a query at the same time
+  static final ExecutorService QUERY_EXECUTOR =
+    Executors.newFixedThreadPool(
+      Runtime.getRuntime().availableProcessors(),
+      runnable -> {
+        Thread thread = new Thread(runnable, "salon-query");
+        // Don't keep the JVM alive once the command line exits
+        thread.setDaemon(true);
+        return thread;
+      });
+  // Commands a read only follower refuses
+  static final Set<String> WRITE_COMMANDS =
+    Set.of(
+      "insert-client",
+      "insert-stylist",
+      "insert-service",
+      "insert-booking",
+      "demo",
+      "branch",
+      "generate",
+      "replay");
+  // Columns of the query results that aren't a single entity
+  static final TableLayout<Map.Entry<Integer, Integer>> CLIENT_BOOKINGS =
+    new TableLayout<Map.Entry<Integer, Integer>>()
+      .column("Client ID", "clientId", 10, Map.Entry::getKey)
+      .column("Bookings", "bookings", 8, Map.Entry::getValue);
+  static final TableLayout<int[]> STYLIST_CLIENT_BOOKINGS =
+    new TableLayout<int[]>()
+      .column("Stylist ID", "stylistId", 10, row -> row[0])
+      .column("Client ID", "clientId", 10, row -> row[1])
+      .column("Bookings", "bookings", 8, row -> row[2]);
+  static final TableLayout<Map.Entry<String, int[]>> BRANCH_CLIENT_BOOKINGS =
+    new TableLayout<Map.Entry<String, int[]>>()
+      .column("Branch", "branch", 10, Map.Entry::getKey)
+      .columns(STYLIST_CLIENT_BOOKINGS, Map.Entry::getValue);
+  static final TableLayout<Map.Entry<Integer, HyperLogLog>> DISTINCT_CLIENTS =
+    new TableLayout<Map.Entry<Integer, HyperLogLog>>()
+      .column("Stylist ID", "stylistId", 10, Map.Entry::getKey)
+      .column("Distinct Clients", "distinctClients", 16, entry -> entry.getValue().estimate());
+  static final TableLayout<Map.Entry<Service, Integer>> SERVICE_REVENUE =
+    new TableLayout<Map.Entry<Service, Integer>>()
+      .column("Service ID", "serviceId", 10, entry -> entry.getKey().getServiceId())
+      .column("Name", "name", 15, entry -> entry.getKey().getServiceName())
+      .money("Revenue", "revenue", 10, Map.Entry::getValue);
+  static final TableLayout<Map.Entry<String, Integer>> SERVICE_NAME_REVENUE =
+    new TableLayout<Map.Entry<String, Integer>>()
+      .column("Name", "name", 15, Map.Entry::getKey)
+      .money("Revenue", "revenue", 10, Map.Entry::getValue);
+  static final TableLayout<Map.Entry<String, Client>> BRANCH_CLIENT =
+    new TableLayout<Map.Entry<String, Client>>()
+      .column("Branch", "branch", 10, Map.Entry::getKey)
+      .columns(Client.TABLE, Map.Entry::getValue);
+  static final TableLayout<Map.Entry<String, Integer>> RECORDS_ADDED =
+    new TableLayout<Map.Entry<String, Integer>>()
+      .column("Records", "records", 10, Map.Entry::getKey)
+      .column("Added", "added", 10, Map.Entry::getValue);
+  // A leaderboard entry with the name of its stylist
+  static final TableLayout<Map.Entry<LeaderboardEntry, String>> LEADERBOARD =
+    new TableLayout<Map.Entry<LeaderboardEntry, String>>()
+      .column("Rank", "rank", 6, entry -> entry.getKey().getRank())
+      .column("Stylist ID", "stylistId", 10, entry -> entry.getKey().getStylistId())
+      .column("Stylist Name", "stylistName", 20, Map.Entry::getValue)
+      .money("Earnings", "earnings", 10, entry -> entry.getKey().getEarnings())
+      .column("Bookings", "bookings", 8, entry -> entry.getKey().getBookings());
+  static final long MEGABYTE = 1024 * 1024;
+  static final TableLayout<StructureStats> MEMORY =
+    new TableLayout<StructureStats>()
+      .column("Tree", "tree", 10, StructureStats::getTree)
+      .column("Structure", "structure", 32, StructureStats::getStructure)
+      .column("Entries", "entries", 10, StructureStats::getEntries)
+      .column("Est. KB", "kilobytes", 10, stats -> (stats.getBytes() + 1023) / 1024);
+  static final TableLayout<AggregateStats> LARGEST_AGGREGATES =
+    new TableLayout<AggregateStats>()
+      .column("Tree", "tree", 10, AggregateStats::getTree)
+      .column("Groups", "groups", 10, AggregateStats::getGroups)
+      .column("Values", "values", 10, AggregateStats::getValues)
+      .column("Est. KB", "kilobytes", 10, stats -> (stats.getBytes() + 1023) / 1024)
+      .column("Seen", "seen", 16, stats -> Booking.TIME_FORMAT.format(stats.getSeen()));
+  // Latencies are shown in microseconds
+  static final TableLayout<LatencyRecorder> LATENCIES =
+    new TableLayout<LatencyRecorder>()
+      .column("Operation", "operation", 18, LatencyRecorder::getName)
+      .column("Count", "count", 8, LatencyRecorder::getCount)
+      .column("p50 us", "p50", 8, latency -> latency.percentile(0.5) / 1000)
+      .column("p90 us", "p90", 8, latency -> latency.percentile(0.9) / 1000)
+      .column("p99 us", "p99", 8, latency -> latency.percentile(0.99) / 1000)
+      .column("p99.9 us", "p999", 8, latency -> latency.percentile(0.999) / 1000)
+      .column("Max us", "max", 8, latency -> latency.max() / 1000);
 
   public static void main(String[] args) {
-    // Creating a secondary index by last name
-    salonData.clientTree.saveIndex(
-      salonData.clientTree.<String>sort(clientEntry -> clientEntry.getValue().getLastName()),
-      "lastNameIndex");
-
-    salonData.stylistTree.saveIndex(
-      salonData.stylistTree.<String>sort(
-        stylistEntry -> stylistEntry.getValue().getStylistName()),
-      "stylistNameIndex");
-
-    salonData.clientTree.saveIndex(
-      salonData.clientTree.<Integer>sort(clientEntry -> clientEntry.getValue().getTotalSpend()),
-      "totalSpendIndex");
-
-    salonData.stylistTree.saveIndex(
-      salonData.stylistTree.<Integer>sort(
-        stylistEntry -> stylistEntry.getValue().getTotalEarnings()),
-      "totalEarningsIndex");
-
     // Options for insert-client command
     Options insertClientOptions = new Options();
     insertClientOptions.addOption(
@@ -96,6 +182,12 @@ public class Salon {
         .hasArg()
         .required(true)
         .build());
+    insertServiceOptions.addOption(
+      Option.builder("d")
+        .longOpt("duration")
+        .desc("Length of the service in minutes, defaults to 30")
+        .hasArg()
+        .build());
 
     // Options for insert-booking command
     Options insertBookingOptions = new Options();
@@ -113,6 +205,13 @@ public class Salon {
         .hasArg()
         .required(true)
         .build());
+    insertBookingOptions.addOption(
+      Option.builder("t")
+        .longOpt("time")
+        .desc(
+          "Earliest start time as \"yyyy-MM-dd HH:mm\". The first stylist free from then is booked")
+        .hasArg()
+        .build());
 
     // Options for query command
     Options queryOptions = new Options();
@@ -124,6 +223,11 @@ public class Salon {
         .hasArg()
         .optionalArg(true)
         .build());
+    queryOptions.addOption(
+      Option.builder("x")
+        .longOpt("approximate")
+        .desc("Count distinct clients per stylist approximately for client-allocations")
+        .build());
     queryOptions.addOption(
       Option.builder("c")
         .longOpt("sort-client")
@@ -135,6 +239,18 @@ public class Salon {
         .longOpt("total-service-revenue")
         .desc("Calculate total service revenue")
         .build());
+    queryOptions.addOption(
+      Option.builder("f")
+        .longOpt("from")
+        .desc("Only include scheduled bookings on or after this yyyy-MM-dd date in revenue")
+        .hasArg()
+        .build());
+    queryOptions.addOption(
+      Option.builder("t")
+        .longOpt("to")
+        .desc("Only include scheduled bookings on or before this yyyy-MM-dd date in revenue")
+        .hasArg()
+        .build());
     queryOptions.addOption(
       Option.builder("h")
         .longOpt("highest-spending-client")
@@ -145,18 +261,155 @@ public class Salon {
         .longOpt("lowest-spending-client")
         .desc("Find lowest spending client")
         .build());
+    queryOptions.addOption(
+      Option.builder("s")
+        .longOpt("search-client")
+        .desc("Find clients by the start or part of their name or phone number, allowing typos")
+        .hasArg()
+        .build());
+    queryOptions.addOption(
+      Option.builder("S")
+        .longOpt("search-stylist")
+        .desc("Find stylists by the start or part of their name, allowing typos")
+        .hasArg()
+        .build());
+    queryOptions.addOption(
+      Option.builder("n")
+        .longOpt("limit")
+        .desc(
+          "Show the top or bottom n clients for highest-spending-client, lowest-spending-client "
+            + "and sort-client service-cost, or n search results or leaderboard stylists")
+        .hasArg()
+        .build());
+    queryOptions.addOption(
+      Option.builder("B")
+        .longOpt("all-branches")
+        .desc(
+          "Run client allocations, service revenue and highest or lowest spender over every branch")
+        .build());
     queryOptions.addOption(
       Option.builder("l")
         .longOpt("list")
         .desc("List data from specific table")
         .hasArg()
         .build());
+    queryOptions.addOption(
+      Option.builder("F")
+        .longOpt("format")
+        .desc("Output format: text (default), csv or json")
+        .hasArg()
+        .build());
+    queryOptions.addOption(
+      Option.builder("m")
+        .longOpt("stats")
+        .desc("Estimated memory used by each tree, index and the largest aggregates")
+        .build());
+    queryOptions.addOption(
+      Option.builder("L")
+        .longOpt("leaderboard")
+        .desc(
+          "Top n stylists by earnings over the most recent bookings or the last hour: "
+            + "bookings or hour")
+        .hasArg()
+        .build());
+
+    // Options for stats command, the only stats so far are memory
+    Options statsOptions = new Options();
+    statsOptions.addOption(
+      Option.builder("F")
+        .longOpt("format")
+        .desc("Output format: text (default), csv or json")
+        .hasArg()
+        .build());
+
+    // Options for generate command
+    Options generateOptions = new Options();
+    generateOptions.addOption(
+      Option.builder("s")
+        .longOpt("seed")
+        .desc("Seed for the random data, the same seed gives the same data (default 1)")
+        .hasArg()
+        .build());
+    generateOptions.addOption(
+      Option.builder("t")
+        .longOpt("stylists")
+        .desc("Number of stylists to add (default 50)")
+        .hasArg()
+        .build());
+    generateOptions.addOption(
+      Option.builder("c")
+        .longOpt("clients")
+        .desc("Number of clients to add (default 10000)")
+        .hasArg()
+        .build());
+    generateOptions.addOption(
+      Option.builder("b")
+        .longOpt("bookings")
+        .desc("Number of bookings to add (default 100000)")
+        .hasArg()
+        .build());
+    generateOptions.addOption(
+      Option.builder("q")
+        .longOpt("queued")
+        .desc("Submit the bookings one at a time through the booking queue")
+        .build());
+
+    // Options for replay command
+    Options replayOptions = new Options();
+    replayOptions.addOption(
+      Option.builder("s")
+        .longOpt("seed")
+        .desc("Seed for the random operations, the same seed gives the same operations (default 1)")
+        .hasArg()
+        .build());
+    replayOptions.addOption(
+      Option.builder("o")
+        .longOpt("operations")
+        .desc("Number of operations to run (default 100000)")
+        .hasArg()
+        .build());
+    replayOptions.addOption(
+      Option.builder("w")
+        .longOpt("writes")
+        .desc("Percentage of operations that write (default 10)")
+        .hasArg()
+        .build());
+    replayOptions.addOption(
+      Option.builder("F")
+        .longOpt("format")
+        .desc("Output format: text (default), csv or json")
+        .hasArg()
+        .build());
+
+    // Options for starting as a replication leader or follower
+    Options startOptions = new Options();
+    startOptions.addOption(
+      Option.builder("w")
+        .longOpt("log-file")
+        .desc("Run as a leader, replaying then appending every change to this mutation log")
+        .hasArg()
+        .build());
+    startOptions.addOption(
+      Option.builder("r")
+        .longOpt("follow")
+        .desc("Run as a read only follower replaying the leader's mutation log")
+        .hasArg()
+        .build());
 
     // Scanner for reading input
     Scanner scanner = new Scanner(System.in);
     CommandLineParser parser = new DefaultParser();
     HelpFormatter formatter = new HelpFormatter();
 
+    try {
+      startReplication(parser.parse(startOptions, args, false));
+    } catch (Exception e) {
+      System.out.println(e.getMessage());
+      formatter.printHelp("salon", startOptions);
+      scanner.close();
+      return;
+    }
+
     Runnable printHelp =
       () -> runPrintHelp(
         formatter,
@@ -164,7 +417,10 @@ public class Salon {
         insertStylistOptions,
         insertServiceOptions,
         insertBookingOptions,
-        queryOptions);
+        queryOptions,
+        statsOptions,
+        generateOptions,
+        replayOptions);
 
     while (true) {
       System.out.print("Type help to see commands, demo to insert demo data or exit to quit > ");
@@ -175,6 +431,21 @@ public class Salon {
       } else if (inputLine.equalsIgnoreCase("help")) {
         printHelp.run();
         continue;
+      } else if (inputLine.equalsIgnoreCase("replication")) {
+        handleReplication();
+        continue;
+      } else if (inputLine.equalsIgnoreCase("cache")) {
+        System.out.println(salonData.getQueryCache());
+        System.out.println("");
+        continue;
+      } else if (follower != null
+        && WRITE_COMMANDS.contains(inputLine.split("\\s+")[0].toLowerCase())) {
+        System.out.println("This is a read only follower, only query commands can be run");
+        System.out.println("");
+        continue;
+      } else if (inputLine.split("\\s+")[0].equalsIgnoreCase("branch")) {
+        handleBranch(inputLine.substring("branch".length()).trim());
+        continue;
       } else if (inputLine.equalsIgnoreCase("demo")) {
         addExampleData();
         System.out.println("Example data addded");
@@ -195,36 +466,54 @@ public class Salon {
       CommandLine cmd = null;
 
       try {
-        switch (command) {
-          case "insert-client":
-            cmd = parser.parse(insertClientOptions, commandArgs, false);
-            handleInsertClient(cmd);
-            System.out.println("");
-            break;
-          case "insert-stylist":
-            cmd = parser.parse(insertStylistOptions, commandArgs, false);
-            handleInsertStylist(cmd);
-            System.out.println("");
-            break;
-          case "insert-service":
-            cmd = parser.parse(insertServiceOptions, commandArgs, false);
-            handleInsertService(cmd);
-            System.out.println("");
-            break;
-          case "insert-booking":
-            cmd = parser.parse(insertBookingOptions, commandArgs, false);
-            handleInsertBooking(cmd);
-            System.out.println("");
-            break;
-          case "query":
-            cmd = parser.parse(queryOptions, commandArgs, false);
-            handleQuery(cmd);
-            System.out.println("");
-            break;
-          default:
-            System.out.println("Unknown command: " + command);
-            System.out.println("Type help to see all commands: " + command);
-            System.out.println("");
+        // The follower applies the leader's changes on another thread while holding this lock
+        synchronized (salonData) {
+          switch (command) {
+            case "insert-client":
+              cmd = parser.parse(insertClientOptions, commandArgs, false);
+              handleInsertClient(cmd);
+              System.out.println("");
+              break;
+            case "insert-stylist":
+              cmd = parser.parse(insertStylistOptions, commandArgs, false);
+              handleInsertStylist(cmd);
+              System.out.println("");
+              break;
+            case "insert-service":
+              cmd = parser.parse(insertServiceOptions, commandArgs, false);
+              handleInsertService(cmd);
+              System.out.println("");
+              break;
+            case "insert-booking":
+              cmd = parser.parse(insertBookingOptions, commandArgs, false);
+              handleInsertBooking(cmd);
+              System.out.println("");
+              break;
+            case "query":
+              cmd = parser.parse(queryOptions, commandArgs, false);
+              handleQuery(cmd);
+              System.out.println("");
+              break;
+            case "stats":
+              cmd = parser.parse(statsOptions, commandArgs, false);
+              handleStats(cmd);
+              System.out.println("");
+              break;
+            case "generate":
+              cmd = parser.parse(generateOptions, commandArgs, false);
+              handleGenerate(cmd);
+              System.out.println("");
+              break;
+            case "replay":
+              cmd = parser.parse(replayOptions, commandArgs, false);
+              handleReplay(cmd);
+              System.out.println("");
+              break;
+            default:
+              System.out.println("Unknown command: " + command);
+              System.out.println("Type help to see all commands: " + command);
+              System.out.println("");
+          }
         }
       } catch (Exception e) {
         System.out.println(e.getMessage());
@@ -235,16 +524,57 @@ public class Salon {
     scanner.close();
   }
 
+  private static void startReplication(CommandLine cmd) throws IOException {
+    if (cmd.hasOption("log-file") && cmd.hasOption("follow")) {
+      throw new ValidationException("Run as either a leader with log-file or a follower, not both");
+    }
+    if (cmd.hasOption("log-file")) {
+      mutationLog = MutationLog.open(Paths.get(cmd.getOptionValue("log-file")), salonData);
+      System.out.println("Leader writing changes to " + mutationLog.getPath());
+    } else if (cmd.hasOption("follow")) {
+      follower = new LogFollower(Paths.get(cmd.getOptionValue("follow")), salonData);
+      follower.start();
+      System.out.println("Read only follower of " + cmd.getOptionValue("follow"));
+    }
+  }
+
+  private static void handleReplication() {
+    if (mutationLog != null) {
+      System.out.println(mutationLog.status());
+    } else if (follower != null) {
+      System.out.println(follower.status());
+    } else {
+      System.out.println("Replication is off, start with --log-file or --follow to turn it on");
+    }
+    System.out.println("");
+  }
+
+  // Switch commands to run against a branch, adding it if it's new. No name lists the branches.
+  private static void handleBranch(String branchName) {
+    if (branchName.isEmpty()) {
+      System.out.println("Branches " + router.getBranches().keySet());
+    } else if (mutationLog != null) {
+      // Only the branch the log was opened on is logged, so writes to any other would never reach
+      // the followers
+      System.out.println("A replication leader can't change branch, only its first is replicated");
+    } else {
+      validString(branchName, "branch");
+      salonData = router.addBranch(branchName);
+      System.out.println("Using branch " + branchName);
+    }
+    System.out.println("");
+  }
+
   private static void addExampleData() {
     salonData.addClient("John", "Doe", "+44 842018472");
     salonData.addClient("Jane", "Smith", "(44) 8420184");
     salonData.addClient("Alice", "Johnson", "842-01847201");
 
     // Adding some example services
-    salonData.addService("Haircut", 50);
-    salonData.addService("Shave", 30);
-    salonData.addService("Style", 70);
-    salonData.addService("Colour", 75);
+    salonData.addService("Haircut", 50, 45);
+    salonData.addService("Shave", 30, 20);
+    salonData.addService("Style", 70, 60);
+    salonData.addService("Colour", 75, 90);
 
     // Adding some example stylists
     salonData.addStylist("Fred Sharp", "Senior Stylist");
@@ -281,6 +611,23 @@ public class Salon {
     return result;
   }
 
+  private static long validSeed(String arg) {
+    try {
+      return Long.parseLong(arg);
+    } catch (NumberFormatException e) {
+      throw new ValidationException("seed should be a whole number. You entered: " + arg);
+    }
+  }
+
+  private static LocalDate validDate(String arg, String argName) {
+    LocalDate result = Validator.isValidDate(arg);
+    if (result == null) {
+      throw new ValidationException(
+        argName + " should be a date formatted as yyyy-MM-dd. You entered: " + arg);
+    }
+    return result;
+  }
+
   private static <V> V validValue(V arg, String argName, Set<V> set) {
     V result = Validator.validateAllowedValues(arg, set);
     if (result == null) {
@@ -301,8 +648,9 @@ public class Salon {
       throw new ValidationException("phone should be a valid phone number. You entered: " + phone);
     }
 
+    boolean exists = salonData.findClientByPhone(phone) != null;
     Client client = salonData.addClient(firstName, lastName, phone);
-    System.out.print("Client added");
+    System.out.print(exists ? "Client with that phone number updated" : "Client added");
     System.out.print(client);
   }
 
@@ -313,44 +661,81 @@ public class Salon {
     validString(name, "name");
     validString(title, "title");
 
+    boolean exists = salonData.findStylistByName(name) != null;
     Stylist stylist = salonData.addStylist(name, title);
-    System.out.print("Stylist added");
+    System.out.print(exists ? "Stylist with that name updated" : "Stylist added");
     System.out.print(stylist);
   }
 
   private static void handleInsertService(CommandLine cmd) {
     String serviceName = cmd.getOptionValue("service");
     String priceRaw = cmd.getOptionValue("price");
+    String durationRaw = cmd.getOptionValue("duration", "30");
 
     validString(serviceName, "service");
     Integer price = validInteger(priceRaw, "price");
+    Integer duration = validInteger(durationRaw, "duration");
 
-    Service service = salonData.addService(serviceName, price);
-    System.out.print("Stylist added");
+    boolean exists = salonData.findServiceByName(serviceName) != null;
+    Service service = salonData.addService(serviceName, price, duration);
+    System.out.print(exists ? "Service with that name updated" : "Service added");
     System.out.print(service);
   }
 
   private static void handleInsertBooking(CommandLine cmd) {
     String clinetIdRaw = cmd.getOptionValue("client-id");
     String csvServiceIds = cmd.getOptionValue("service-ids");
+    String timeRaw = cmd.getOptionValue("time");
 
     Integer clinetId = validInteger(clinetIdRaw, "client-id");
     Integer[] serviceIds =
       Validator.validateCommaSeparatedString(
-        csvServiceIds, serviceId -> validInteger(serviceId, "Each csv of service-ids"));
-    // TODO Check that the clinetId and serviceIds are in the system
-    Booking booking = salonData.addBooking(clinetId, serviceIds);
+        csvServiceIds,
+        serviceId -> validInteger(serviceId, "Each csv of service-ids"),
+        Integer[]::new);
+    LocalDateTime time = null;
+    if (timeRaw != null) {
+      time = Validator.isValidDateTime(timeRaw, Booking.TIME_FORMAT);
+      if (time == null) {
+        throw new ValidationException(
+          "time should be formatted as yyyy-MM-dd HH:mm. You entered: " + timeRaw);
+      }
+    }
+    if (clinetId != null && salonData.clientTree.get(clinetId) == null) {
+      throw new ValidationException("There is no client with client-id " + clinetId);
+    }
+    for (Integer serviceId : serviceIds) {
+      if (salonData.serviceTree.get(serviceId) == null) {
+        throw new ValidationException("There is no service with service-id " + serviceId);
+      }
+    }
+    Booking booking =
+      time == null
+        ? salonData.addBooking(clinetId, serviceIds)
+        : salonData.addBooking(clinetId, time, serviceIds);
     System.out.print("Booking added");
     System.out.print(booking);
   }
 
   private static void handleQuery(CommandLine cmd) {
     boolean clientAllocations = cmd.hasOption("client-allocations");
+    boolean approximate = cmd.hasOption("approximate");
     boolean totalServiceRevenue = cmd.hasOption("total-service-revenue");
     boolean highestSpendingClient = cmd.hasOption("highest-spending-client");
     boolean lowestSpendingClient = cmd.hasOption("lowest-spending-client");
     String sortClientsBy = cmd.getOptionValue("sort-client");
     String dataToList = cmd.getOptionValue("list");
+    String leaderboard = cmd.getOptionValue("leaderboard");
+    String format = cmd.getOptionValue("format", "text");
+    LocalDate from = cmd.hasOption("from") ? validDate(cmd.getOptionValue("from"), "from") : null;
+    LocalDate to = cmd.hasOption("to") ? validDate(cmd.getOptionValue("to"), "to") : null;
+    if (from != null && to != null && from.isAfter(to)) {
+      throw new ValidationException(
+        "from should be on or before to. You entered: " + from + " to " + to);
+    }
+    Integer limit =
+      cmd.hasOption("limit") ? validInteger(cmd.getOptionValue("limit"), "limit") : null;
+    int searchLimit = limit == null ? SEARCH_LIMIT : limit;
 
     if (sortClientsBy != null) {
       validValue(sortClientsBy, "sort-client", Set.of("service-cost", "last-name"));
@@ -358,86 +743,427 @@ public class Salon {
     if (dataToList != null) {
       validValue(dataToList, "list", Set.of("clients", "services", "stylists", "bookings"));
     }
+    if (leaderboard != null) {
+      validValue(leaderboard, "leaderboard", Set.of("bookings", "hour"));
+    }
+    validValue(format, "format", Set.of("text", "csv", "json"));
+    ReportWriter report = new ReportWriter(System.out, ReportFormat.parse(format));
 
-    if (clientAllocations) {
-      String stylistName = cmd.getOptionValue("client-allocations");
-      if (stylistName != null) {
-        // TODO this is still using the default toString to print but the service data is accessible
-        // on the object
-        System.out.println(
-          "NOTICE: This is still using the default toString to print but the service data is accessible on the object.");
-        System.out.println(
-          "NOTICE: The data keys are client IDs the stylist has served and the result contains client info");
-        System.out.println("Client Allocations for " + stylistName);
-        Stylist stylist = salonData.stylistTree.get(stylistName, "stylistNameIndex");
-        if (stylist == null) {
-          throw new ValidationException("There is no stylist in the system named " + stylistName);
+    try {
+      if (cmd.hasOption("all-branches")) {
+        handleAllBranchesQuery(
+          report,
+          clientAllocations,
+          totalServiceRevenue,
+          highestSpendingClient,
+          lowestSpendingClient);
+        return;
+      }
+
+      // The command loop holds the salonData lock for the whole query so no write can land while
+      // the sections are read, and every section is finished before writeTo returns
+      ReportSections sections = new ReportSections(QUERY_EXECUTOR);
+
+      if (clientAllocations) {
+        String stylistName = cmd.getOptionValue("client-allocations");
+        if (stylistName != null) {
+          sections.add(
+            () -> {
+              Stylist stylist = salonData.stylistTree.get(stylistName, "stylistNameIndex");
+              if (stylist == null) {
+                List<String> suggestions = new ArrayList<>();
+                for (Stylist match : salonData.searchStylists(stylistName, searchLimit)) {
+                  suggestions.add(match.getStylistName());
+                }
+                throw new ValidationException(
+                  "There is no stylist in the system named "
+                    + stylistName
+                    + (suggestions.isEmpty() ? "" : ". Did you mean one of " + suggestions));
+              }
+              if (approximate) {
+                long estimate =
+                  salonData
+                    .countStylistsDistinctClientsApprox()
+                    .getOrDefault(stylist.getStylistId(), new HyperLogLog())
+                    .estimate();
+                return out ->
+                  out.message(
+                    "Client Allocations for " + stylistName,
+                    "Approximately " + estimate + " distinct clients");
+              }
+              Map<Integer, Integer> clients =
+                salonData.countStylistsClientsCompact().get(stylist.getStylistId());
+              return out ->
+                out.table(
+                  "Client Allocations for " + stylistName, CLIENT_BOOKINGS, clients.entrySet());
+            });
+        } else if (approximate) {
+          sections.add(
+            () -> {
+              Map<Integer, HyperLogLog> clients = salonData.countStylistsDistinctClientsApprox();
+              return out -> {
+                out.notice("The client counts are estimates");
+                out.table("All Client Allocations", DISTINCT_CLIENTS, clients.entrySet());
+              };
+            });
+        } else {
+          sections.add(
+            () -> {
+              List<int[]> rows = allocationRows(salonData.countStylistsClientsCompact());
+              return out -> out.table("All Client Allocations", STYLIST_CLIENT_BOOKINGS, rows);
+            });
+        }
+      }
+
+      if (totalServiceRevenue && (from != null || to != null)) {
+        sections.add(
+          () -> {
+            List<Map.Entry<Service, Integer>> rows =
+              revenueRows(salonData.calculateServiceRevenue(from, to));
+            return out -> {
+              out.notice("Only scheduled bookings are counted");
+              out.table(
+                "Total Revenue by Service from "
+                  + (from == null ? "the start" : from)
+                  + " to "
+                  + (to == null ? "the end" : to),
+                SERVICE_REVENUE,
+                rows);
+            };
+          });
+      } else if (totalServiceRevenue) {
+        sections.add(
+          () -> {
+            List<Map.Entry<Service, Integer>> rows =
+              revenueRows(salonData.calculateServiceRevenue());
+            return out -> out.table("Total Revenue by Service", SERVICE_REVENUE, rows);
+          });
+      }
+
+      if (highestSpendingClient && limit != null) {
+        sections.add(
+          clientsSection(
+            "Top " + limit + " Highest Spending Clients",
+            () -> salonData.topClientsByTotalSpend(limit)));
+      } else if (highestSpendingClient) {
+        sections.add(
+          clientsSection(
+            "Highest Spending Client",
+            () -> List.of(salonData.findClientWithHighestTotalServiceCostCached())));
+      }
+
+      if (lowestSpendingClient && limit != null) {
+        sections.add(
+          clientsSection(
+            "Bottom " + limit + " Lowest Spending Clients",
+            () -> salonData.bottomClientsByTotalSpend(limit)));
+      } else if (lowestSpendingClient) {
+        sections.add(
+          clientsSection(
+            "Lowest Spending Client",
+            () -> List.of(salonData.findClientWithLowestTotalServiceCostCached())));
+      }
+
+      if (sortClientsBy != null) {
+        switch (sortClientsBy) {
+          case "service-cost":
+            if (limit != null) {
+              // Only the leaders are shown so there is no need to sort every client
+              sections.add(
+                clientsSection(
+                  "Top " + limit + " clients sorted by service cost",
+                  () -> salonData.topClientsByTotalSpend(limit)));
+            } else {
+              sections.add(
+                clientsSection(
+                  "Clients sorted by service cost",
+                  () -> salonData.sortClientsServiceCostCached().values()));
+            }
+            break;
+          case "last-name":
+            sections.add(
+              clientsSection(
+                "Clients sorted by last name",
+                () -> salonData.sortClientsByLastName()));
+            break;
         }
-        System.out.print(salonData.countStylistsClients().get(stylist.getStylistId()));
-      } else {
-        // TODO this is still using the default toString to print but the service data is accessible
-        // on the object
-        System.out.println(
-          "NOTICE: This is still using the default toString to print but the service data is accessible on the object.");
-        System.out.println(
-          "NOTICE: The data keys are stylist ids and the values are nested data with keys of each client ID the stylist has served");
-        System.out.println("All Client Allocations");
-        System.out.print(salonData.countStylistsClients());
       }
+
+      if (cmd.hasOption("search-client")) {
+        String text = cmd.getOptionValue("search-client");
+        sections.add(
+          clientsSection(
+            "Clients matching " + text, () -> salonData.searchClients(text, searchLimit)));
+      }
+
+      if (cmd.hasOption("search-stylist")) {
+        String text = cmd.getOptionValue("search-stylist");
+        sections.add(
+          () -> {
+            List<Stylist> stylists = salonData.searchStylists(text, searchLimit);
+            return out -> out.table("Stylists matching " + text, Stylist.TABLE, stylists);
+          });
+      }
+
+      if (leaderboard != null) {
+        StylistLeaderboard boards = salonData.getLeaderboard();
+        String title =
+          leaderboard.equals("bookings")
+            ? "Top " + searchLimit + " stylists over the last " + boards.getBookingWindow()
+              + " bookings"
+            : "Top " + searchLimit + " stylists in the last "
+              + boards.getTimeWindowMillis() / 60_000 + " minutes";
+        sections.add(
+          () -> {
+            List<LeaderboardEntry> top =
+              leaderboard.equals("bookings")
+                ? salonData.topStylistsOverRecentBookings(searchLimit)
+                : salonData.topStylistsOverRecentTime(searchLimit);
+            List<Map.Entry<LeaderboardEntry, String>> rows = new ArrayList<>(top.size());
+            for (LeaderboardEntry entry : top) {
+              Stylist stylist = salonData.stylistTree.get(entry.getStylistId());
+              rows.add(Map.entry(entry, stylist == null ? "" : stylist.getStylistName()));
+            }
+            // The boards are fed by the change feed so a failed listener means a missed booking
+            ChangeFeed feed = salonData.getChangeFeed();
+            long failures = feed.getFailures();
+            String lastFailure = feed.getLastFailure();
+            return out -> {
+              if (failures > 0) {
+                out.notice(
+                  failures
+                    + " change listener failures, the boards may be missing bookings. The last"
+                    + " was on "
+                    + lastFailure);
+              }
+              out.table(title, LEADERBOARD, rows);
+            };
+          });
+      }
+
+      if (cmd.hasOption("stats")) {
+        sections.add(Salon::memoryStats);
+      }
+
+      // Listing only walks a tree so it is written straight from it
+      if (dataToList != null) {
+        switch (dataToList) {
+          case "clients":
+            sections.add(
+              () ->
+                out ->
+                  out.table(
+                    "All Clients", Client.TABLE, salonData.clientTree.getPrimaryStore().values()));
+            break;
+          case "services":
+            sections.add(
+              () ->
+                out ->
+                  out.table(
+                    "All Services",
+                    Service.TABLE,
+                    salonData.serviceTree.getPrimaryStore().values()));
+            break;
+          case "stylists":
+            sections.add(
+              () ->
+                out ->
+                  out.table(
+                    "All Stylists",
+                    Stylist.TABLE,
+                    salonData.stylistTree.getPrimaryStore().values()));
+            break;
+          case "bookings":
+            sections.add(
+              () ->
+                out ->
+                  out.table(
+                    "All Bookings",
+                    Booking.TABLE,
+                    salonData.bookingTree.getPrimaryStore().values()));
+            break;
+        }
+      }
+
+      sections.writeTo(report);
+    } finally {
+      // Sections already rendered are still shown when a later one fails validation
+      report.finish();
+    }
+  }
+
+  private static void handleStats(CommandLine cmd) {
+    if (!cmd.getArgList().equals(List.of("memory"))) {
+      throw new ValidationException(
+        "stats should be followed by memory. You entered: " + cmd.getArgList());
+    }
+    String format = cmd.getOptionValue("format", "text");
+    validValue(format, "format", Set.of("text", "csv", "json"));
+    ReportWriter report = new ReportWriter(System.out, ReportFormat.parse(format));
+    memoryStats().accept(report);
+    report.finish();
+  }
+
+  // Estimated from sizes and samples so it is cheap enough to run against a live salon
+  private static Consumer<ReportWriter> memoryStats() {
+    List<StructureStats> structures = new ArrayList<>();
+    for (RBTree<?, ?> tree :
+      List.of(
+        salonData.clientTree,
+        salonData.bookingTree,
+        salonData.stylistTree,
+        salonData.serviceTree)) {
+      structures.addAll(tree.memoryStats());
+    }
+    long total = structures.stream().mapToLong(StructureStats::getBytes).sum();
+    List<AggregateStats> aggregates = LargestAggregates.get();
+    Runtime runtime = Runtime.getRuntime();
+    String heap =
+      "Estimated "
+        + total / MEGABYTE
+        + " MB in the trees, "
+        + (runtime.totalMemory() - runtime.freeMemory()) / MEGABYTE
+        + " MB used of "
+        + runtime.totalMemory() / MEGABYTE
+        + " MB committed, "
+        + runtime.maxMemory() / MEGABYTE
+        + " MB max";
+    return report -> {
+      report.notice("Sizes are estimates for a 64 bit JVM with compressed references");
+      report.table("Memory by structure", MEMORY, structures);
+      report.message("Heap", heap);
+      report.table("Largest aggregates seen", LARGEST_AGGREGATES, aggregates);
+    };
+  }
+
+  // A section that is a table of clients
+  private static Supplier<Consumer<ReportWriter>> clientsSection(
+    String title, Supplier<Collection<Client>> clients) {
+    return () -> {
+      Collection<Client> rows = clients.get();
+      return report -> report.table(title, Client.TABLE, rows);
+    };
+  }
+
+  private static void handleGenerate(CommandLine cmd) {
+    long seed = validSeed(cmd.getOptionValue("seed", "1"));
+    int stylists = validInteger(cmd.getOptionValue("stylists", "50"), "stylists");
+    int clients = validInteger(cmd.getOptionValue("clients", "10000"), "clients");
+    int bookings = validInteger(cmd.getOptionValue("bookings", "100000"), "bookings");
+    long start = System.nanoTime();
+    boolean queued = cmd.hasOption("queued");
+    BookingQueue queue = salonData.getBookingQueue();
+    long batches = queue.getBatches();
+    Map<String, Integer> added =
+      new Workload(salonData, seed).generate(stylists, clients, bookings, queued);
+    long millis = Math.max(1, (System.nanoTime() - start) / 1_000_000);
+    long records = added.values().stream().mapToLong(Integer::longValue).sum();
+    ReportWriter report = new ReportWriter(System.out, ReportFormat.TEXT);
+    report.table("Generated with seed " + seed, RECORDS_ADDED, added.entrySet());
+    if (queued) {
+      report.message(
+        "Booking queue",
+        added.get("bookings")
+          + " bookings added in "
+          + (queue.getBatches() - batches)
+          + " batches, "
+          + queue.getFailed()
+          + " rejected since the start");
+    }
+    report.message(
+      "Took " + millis + " ms", "About " + records * 1000 / millis + " records a second");
+    report.finish();
+  }
+
+  private static void handleReplay(CommandLine cmd) {
+    long seed = validSeed(cmd.getOptionValue("seed", "1"));
+    int operations = validInteger(cmd.getOptionValue("operations", "100000"), "operations");
+    String writes = cmd.getOptionValue("writes", "10");
+    Integer writePercent = Validator.isValidNumberInRange(writes, 0, 100);
+    if (writePercent == null) {
+      throw new ValidationException(
+        "writes should be a percentage between 0 and 100. You entered: " + writes);
+    }
+    String format = cmd.getOptionValue("format", "text");
+    validValue(format, "format", Set.of("text", "csv", "json"));
+    long start = System.nanoTime();
+    List<LatencyRecorder> latencies =
+      new Workload(salonData, seed).replay(operations, writePercent);
+    long nanos = Math.max(1, System.nanoTime() - start);
+    ReportWriter report = new ReportWriter(System.out, ReportFormat.parse(format));
+    report.message(
+      "Replayed " + operations + " operations with seed " + seed,
+      Math.round(operations * 1e9 / nanos) + " operations a second");
+    report.table("Latency by operation", LATENCIES, latencies);
+    report.finish();
+  }
+
+  private static void handleAllBranchesQuery(
+    ReportWriter report,
+    boolean clientAllocations,
+    boolean totalServiceRevenue,
+    boolean highestSpendingClient,
+    boolean lowestSpendingClient) {
+    if (clientAllocations) {
+      List<Map.Entry<String, int[]>> rows = new ArrayList<>();
+      router
+        .countStylistsClients()
+        .forEach(
+          (branch, counts) -> {
+            for (int[] row : allocationRows(counts)) {
+              rows.add(new AbstractMap.SimpleImmutableEntry<>(branch, row));
+            }
+          });
+      report.table("All Client Allocations for every branch", BRANCH_CLIENT_BOOKINGS, rows);
     }
 
     if (totalServiceRevenue) {
-      // TODO this is still using the default toString to print
-      System.out.println("NOTICE: This is still using the default toString to Print");
-      System.out.println(
-        "NOTICE: The data keys are service IDs and the Result contains the service revenue");
-      System.out.println("Total Revenue by Service");
-      System.out.print(salonData.calculateServiceRevenue());
+      report.notice("Services are matched by name as service IDs differ per branch");
+      report.table(
+        "Total Revenue by Service for every branch",
+        SERVICE_NAME_REVENUE,
+        router.calculateServiceRevenue().entrySet());
     }
 
     if (highestSpendingClient) {
-      System.out.println("Highest Spending Client");
-      System.out.print(salonData.findClientWithHighestTotalServiceCostCached());
+      Map.Entry<String, Client> highest = router.findClientWithHighestTotalServiceCost();
+      report.table(
+        "Highest Spending Client across every branch",
+        BRANCH_CLIENT,
+        highest == null ? List.of() : List.of(highest));
     }
 
     if (lowestSpendingClient) {
-      System.out.println("Lowest Spending Client");
-      System.out.print(salonData.findClientWithLowestTotalServiceCostCached());
+      Map.Entry<String, Client> lowest = router.findClientWithLowestTotalServiceCost();
+      report.table(
+        "Lowest Spending Client across every branch",
+        BRANCH_CLIENT,
+        lowest == null ? List.of() : List.of(lowest));
     }
+  }
 
-    if (sortClientsBy != null) {
-      switch (sortClientsBy) {
-        case "service-cost":
-          System.out.println("Clients sorted by service cost");
-          System.out.print(salonData.sortClientsServiceCostCached());
-          break;
-        case "last-name":
-          System.out.println("Clients sorted by last name");
-          System.out.print(salonData.sortClientsByLastName());
-          break;
-      }
-    }
+  // One row of stylist ID, client ID and bookings for each pair, ordered by stylist then client
+  private static List<int[]> allocationRows(PairCounter counts) {
+    List<int[]> rows = new ArrayList<>(counts.size());
+    counts
+      .toMap()
+      .forEach(
+        (stylistId, clients) ->
+          clients.forEach(
+            (clientId, bookings) -> rows.add(new int[] {stylistId, clientId, bookings})));
+    return rows;
+  }
 
-    if (dataToList != null) {
-      switch (dataToList) {
-        case "clients":
-          System.out.println("All Clients");
-          System.out.print(salonData.clientTree);
-          break;
-        case "services":
-          System.out.println("All Services");
-          System.out.print(salonData.serviceTree);
-          break;
-        case "stylists":
-          System.out.println("All Stylists");
-          System.out.print(salonData.stylistTree);
-          break;
-        case "bookings":
-          System.out.println("All Bookings");
-          System.out.print(salonData.bookingTree);
-          break;
+  // Revenue of each service ordered by service ID, groups that aren't a service are left out
+  private static List<Map.Entry<Service, Integer>> revenueRows(Map<Integer, Integer> revenue) {
+    List<Map.Entry<Service, Integer>> rows = new ArrayList<>();
+    for (Map.Entry<Integer, Integer> entry : new TreeMap<>(revenue).entrySet()) {
+      Service service = salonData.serviceTree.get(entry.getKey());
+      if (service != null) {
+        rows.add(new AbstractMap.SimpleImmutableEntry<>(service, entry.getValue()));
       }
     }
+    return rows;
   }
 
   public static List<String> parseCommandLine(String inputLine) {
@@ -465,7 +1191,10 @@ public class Salon {
     Options insertStylistOptions,
     Options insertServiceOptions,
     Options insertBookingOptions,
-    Options queryOptions) {
+    Options queryOptions,
+    Options statsOptions,
+    Options generateOptions,
+    Options replayOptions) {
     formatter.printHelp("insert-client", insertClientOptions);
     System.out.println("");
     formatter.printHelp("insert-stylist", insertStylistOptions);
@@ -476,6 +1205,12 @@ public class Salon {
     System.out.println("");
     formatter.printHelp("query", queryOptions);
     System.out.println("");
+    formatter.printHelp("stats memory", statsOptions);
+    System.out.println("");
+    formatter.printHelp("generate", generateOptions);
+    System.out.println("");
+    formatter.printHelp("replay", replayOptions);
+    System.out.println("");
   }
 
   public class Enterprise {
@@ -1,7 +1,22 @@
 package salon;
 
+import java.io.ByteArrayOutputStream;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.AbstractMap;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.IntUnaryOperator;
 
 @FunctionalInterface
 interface TriFunction<T, U, V, R> {
@@ -14,15 +29,33 @@ interface HasPrimaryKey<K> {
 }
 
 
+// Entities use primitive fields and pooled strings to keep each record small
 class Service implements HasPrimaryKey<Integer> {
-  private Integer serviceId;
+  static final TableLayout<Service> TABLE =
+    new TableLayout<Service>()
+      .column("ID", "id", 5, Service::getServiceId)
+      .column("Name", "name", 15, Service::getServiceName)
+      .money("Price", "price", 7, Service::getServiceCost)
+      .column("Minutes", "minutes", 8, Service::getServiceDuration);
+  private int serviceId;
   private String serviceName;
-  private Integer serviceCost;
+  // The price of bookings made from now on
+  private int serviceCost;
+  // Earlier prices, oldest first, as pairs of the first booking id that no longer paid the price
+  // and the price. Null until the service is repriced, which is rare
+  private int[] earlierCosts;
+  // Length of the service in minutes
+  private int serviceDuration;
+
+  Service(int serviceId, String serviceName, int serviceCost) {
+    this(serviceId, serviceName, serviceCost, 30);
+  }
 
-  Service(Integer serviceId, String serviceName, Integer serviceCost) {
+  Service(int serviceId, String serviceName, int serviceCost, int serviceDuration) {
     this.serviceId = serviceId;
-    this.serviceName = serviceName;
+    this.serviceName = StringPool.intern(serviceName);
     this.serviceCost = serviceCost;
+    this.serviceDuration = serviceDuration;
   }
 
   @Override
@@ -30,7 +63,7 @@ class Service implements HasPrimaryKey<Integer> {
     return serviceId;
   }
 
-  public Integer getServiceId() {
+  public int getServiceId() {
     return serviceId;
   }
 
@@ -38,16 +71,61 @@ class Service implements HasPrimaryKey<Integer> {
     return serviceName;
   }
 
-  public Integer getServiceCost() {
+  public int getServiceCost() {
     return serviceCost;
   }
 
+  // The price the booking was charged for this service, bookings made before a price change keep
+  // the price they were made at
+  public int getServiceCost(int bookingId) {
+    if (earlierCosts == null || bookingId >= earlierCosts[earlierCosts.length - 2]) {
+      return serviceCost;
+    }
+    // The first price that stopped applying after the booking was made
+    int low = 0;
+    int high = earlierCosts.length / 2 - 1;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (earlierCosts[mid * 2] > bookingId) {
+        high = mid;
+      } else {
+        low = mid + 1;
+      }
+    }
+    return earlierCosts[low * 2 + 1];
+  }
+
+  // Bookings from nextBookingId on are charged the new price
+  public void setServiceCost(int serviceCost, int nextBookingId) {
+    int length = earlierCosts == null ? 0 : earlierCosts.length;
+    earlierCosts = length == 0 ? new int[2] : Arrays.copyOf(earlierCosts, length + 2);
+    earlierCosts[length] = nextBookingId;
+    earlierCosts[length + 1] = this.serviceCost;
+    this.serviceCost = serviceCost;
+  }
+
+  // Puts back the price before the last setServiceCost
+  public void undoSetServiceCost() {
+    int length = earlierCosts.length - 2;
+    serviceCost = earlierCosts[length + 1];
+    earlierCosts = length == 0 ? null : Arrays.copyOf(earlierCosts, length);
+  }
+
+  public int getServiceDuration() {
+    return serviceDuration;
+  }
+
+  // Bookings store their end time so changing the length doesn't move them
+  public void setServiceDuration(int serviceDuration) {
+    this.serviceDuration = serviceDuration;
+  }
+
   public String toHeaderString() {
-    return String.format("   | %-5s | %-15s | %-7s |%n", "ID", "Name", "Price");
+    return TABLE.header();
   }
 
   public String toBodyString() {
-    return String.format("   | %-5s | %-15s | %-7s |%n", serviceId, serviceName, "£" + serviceCost);
+    return TABLE.row(this);
   }
 
   @Override
@@ -58,15 +136,20 @@ class Service implements HasPrimaryKey<Integer> {
 
 
 class Stylist implements HasPrimaryKey<Integer> {
-  private Integer stylistId;
+  static final TableLayout<Stylist> TABLE =
+    new TableLayout<Stylist>()
+      .column("ID", "id", 5, Stylist::getStylistId)
+      .column("Stylist Name", "name", 15, Stylist::getStylistName)
+      .money("Total Earnings", "totalEarnings", 15, Stylist::getTotalEarnings);
+  private int stylistId;
   private String stylistName;
   private String title;
-  private Integer totalEarnings = 0;
+  private int totalEarnings = 0;
 
-  Stylist(Integer stylistId, String stylistName, String title) {
+  Stylist(int stylistId, String stylistName, String title) {
     this.stylistId = stylistId;
     this.stylistName = stylistName;
-    this.title = title;
+    this.title = StringPool.intern(title);
   }
 
   @Override
@@ -74,7 +157,7 @@ class Stylist implements HasPrimaryKey<Integer> {
     return stylistId;
   }
 
-  public Integer getStylistId() {
+  public int getStylistId() {
     return stylistId;
   }
 
@@ -86,21 +169,24 @@ class Stylist implements HasPrimaryKey<Integer> {
     return title;
   }
 
-  public Integer addToTotal(Integer amount) {
+  public void setTitle(String title) {
+    this.title = StringPool.intern(title);
+  }
+
+  public int addToTotal(int amount) {
     return totalEarnings += amount;
   }
 
-  public Integer getTotalEarnings() {
+  public int getTotalEarnings() {
     return totalEarnings;
   }
 
   public String toHeaderString() {
-    return String.format("   | %-5s | %-15s | %-15s |%n", "ID", "Stylist Name", "Total Earnings");
+    return TABLE.header();
   }
 
   public String toBodyString() {
-    return String.format(
-      "   | %-5s | %-15s | %-15s |%n", stylistId, stylistName, "£" + totalEarnings);
+    return TABLE.row(this);
   }
 
   @Override
@@ -111,16 +197,66 @@ class Stylist implements HasPrimaryKey<Integer> {
 
 
 class Booking implements HasPrimaryKey<Integer> {
-  private Integer bookingId;
-  private Integer clientId;
-  private Integer[] serviceIds;
-  private Integer stylistId;
+  static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm");
+  static final TableLayout<Booking> TABLE =
+    new TableLayout<Booking>()
+      .column("ID", "id", 5, Booking::getBookingId)
+      .column("Client ID", "clientId", 10, Booking::getClientId)
+      .column("Stylist ID", "stylistId", 10, Booking::getStylistId)
+      .column("Service IDs", "serviceIds", 15, Booking::getServiceIds)
+      .column(
+        "Start",
+        "start",
+        16,
+        booking -> booking.isScheduled() ? TIME_FORMAT.format(booking.getStartTime()) : "-");
+  // Up to six service ids below 1024 are packed ten bits each into serviceIds with the count in the
+  // top four bits, which covers nearly every booking without an array or boxed ids
+  private static final int INLINE_IDS = 6;
+  private static final int INLINE_BITS = 10;
+  private static final int INLINE_MASK = (1 << INLINE_BITS) - 1;
+  private static final int COUNT_SHIFT = 60;
+  private int bookingId;
+  // 0 for sentinel bookings that have no client
+  private int clientId;
+  // The packed service ids, or just their count when they are in encodedServiceIds
+  private long serviceIds;
+  // Null unless the ids don't fit in serviceIds, then each is a varint of seven bits a byte
+  private byte[] encodedServiceIds;
+  private int stylistId;
+  // What the booking was charged, so changing a service's price doesn't change earlier bookings
+  private final int totalCost;
+  // Both are null for bookings that have not been given a time slot
+  private LocalDateTime startTime;
+  private LocalDateTime endTime;
+
+  Booking(int bookingId, Integer clientId, Integer[] serviceId, int stylistId, int totalCost) {
+    this(bookingId, clientId, serviceId, stylistId, totalCost, null, null);
+  }
 
-  Booking(Integer bookingId, Integer clientId, Integer[] serviceId, Integer stylistId) {
+  Booking(
+    int bookingId,
+    Integer clientId,
+    Integer[] serviceId,
+    int stylistId,
+    int totalCost,
+    LocalDateTime startTime,
+    LocalDateTime endTime) {
     this.bookingId = bookingId;
-    this.clientId = clientId;
-    this.serviceIds = serviceId;
+    this.clientId = clientId == null ? 0 : clientId;
+    if (fitsInline(serviceId)) {
+      long packed = (long) serviceId.length << COUNT_SHIFT;
+      for (int i = 0; i < serviceId.length; i++) {
+        packed |= (long) serviceId[i] << (i * INLINE_BITS);
+      }
+      this.serviceIds = packed;
+    } else {
+      this.serviceIds = serviceId.length;
+      this.encodedServiceIds = encode(serviceId);
+    }
     this.stylistId = stylistId;
+    this.totalCost = totalCost;
+    this.startTime = startTime;
+    this.endTime = endTime;
   }
 
   @Override
@@ -128,31 +264,100 @@ class Booking implements HasPrimaryKey<Integer> {
     return bookingId;
   }
 
-  public Integer getBookingId() {
+  public int getBookingId() {
     return bookingId;
   }
 
   public Integer getClientId() {
-    return clientId;
+    return clientId == 0 ? null : clientId;
   }
 
+  // A new array each call, use serviceIdCount and serviceIdAt to read the ids without allocating
   public Integer[] getServiceIds() {
-    return serviceIds;
+    Integer[] ids = new Integer[serviceIdCount()];
+    for (int i = 0; i < ids.length; i++) {
+      ids[i] = serviceIdAt(i);
+    }
+    return ids;
+  }
+
+  public int serviceIdCount() {
+    return encodedServiceIds == null ? (int) (serviceIds >>> COUNT_SHIFT) : (int) serviceIds;
   }
 
-  public Integer getStylistId() {
+  public int serviceIdAt(int i) {
+    Objects.checkIndex(i, serviceIdCount());
+    if (encodedServiceIds == null) {
+      return (int) (serviceIds >>> (i * INLINE_BITS)) & INLINE_MASK;
+    }
+    // Varints have to be read from the start but lists this long are rare and still short
+    int position = 0;
+    for (int skipped = 0; skipped < i; position++) {
+      if (encodedServiceIds[position] >= 0) {
+        skipped++;
+      }
+    }
+    int id = 0;
+    for (int shift = 0; ; shift += 7, position++) {
+      id |= (encodedServiceIds[position] & 0x7f) << shift;
+      if (encodedServiceIds[position] >= 0) {
+        return id;
+      }
+    }
+  }
+
+  private static boolean fitsInline(Integer[] serviceIds) {
+    if (serviceIds.length > INLINE_IDS) {
+      return false;
+    }
+    for (Integer serviceId : serviceIds) {
+      if (serviceId < 0 || serviceId > INLINE_MASK) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // Ids are written as unsigned so a negative one takes five bytes rather than breaking the format
+  private static byte[] encode(Integer[] serviceIds) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(serviceIds.length * 2);
+    for (Integer serviceId : serviceIds) {
+      int id = serviceId;
+      while ((id & ~0x7f) != 0) {
+        out.write((id & 0x7f) | 0x80);
+        id >>>= 7;
+      }
+      out.write(id);
+    }
+    return out.toByteArray();
+  }
+
+  public int getStylistId() {
     return stylistId;
   }
 
+  public int getTotalCost() {
+    return totalCost;
+  }
+
+  public LocalDateTime getStartTime() {
+    return startTime;
+  }
+
+  public LocalDateTime getEndTime() {
+    return endTime;
+  }
+
+  public boolean isScheduled() {
+    return startTime != null;
+  }
+
   public String toHeaderString() {
-    return String.format(
-      "   | %-5s | %-10s | %-10s | %-15s |%n", "ID", "Client ID", "Stylist ID", "Service IDs");
+    return TABLE.header();
   }
 
   public String toBodyString() {
-    return String.format(
-      "   | %-5s | %-10s | %-10s | %-15s |%n",
-      bookingId, clientId, stylistId, Arrays.toString(serviceIds));
+    return TABLE.row(this);
   }
 
   @Override
@@ -164,18 +369,28 @@ class Booking implements HasPrimaryKey<Integer> {
 
 // Client class representing client details
 class Client implements HasPrimaryKey<Integer> {
-  private Integer clientId;
+  static final TableLayout<Client> TABLE =
+    new TableLayout<Client>()
+      .column("ID", "id", 5, Client::getClientId)
+      .column("First Name", "firstName", 15, Client::getFirstName)
+      .column("Last Name", "lastName", 15, Client::getLastName)
+      .column("Phone", "phone", 15, Client::getPhone);
+  private int clientId;
+  // First names repeat a lot so they are pooled, last names mostly don't
   private String firstName;
   private String lastName;
-  private String phone;
-  private Integer totalSpend = 0;
+  // Normalised digits packed by PhoneNumber, phoneText is only kept when it can't be packed
+  private long phone;
+  private String phoneText;
+  private int totalSpend = 0;
   // Other client details as needed
 
-  public Client(Integer clientId, String firstName, String lastName, String phone) {
+  public Client(int clientId, String firstName, String lastName, String phone) {
     this.clientId = clientId;
-    this.firstName = firstName;
+    this.firstName = StringPool.intern(firstName);
     this.lastName = lastName;
-    this.phone = phone;
+    this.phone = PhoneNumber.pack(phone);
+    this.phoneText = this.phone == PhoneNumber.NOT_PACKED ? phone : null;
   }
 
   @Override
@@ -183,7 +398,7 @@ class Client implements HasPrimaryKey<Integer> {
     return clientId;
   }
 
-  public Integer getClientId() {
+  public int getClientId() {
     return clientId;
   }
 
@@ -195,26 +410,33 @@ class Client implements HasPrimaryKey<Integer> {
     return lastName;
   }
 
+  public void setName(String firstName, String lastName) {
+    this.firstName = StringPool.intern(firstName);
+    this.lastName = lastName;
+  }
+
   public String getPhone() {
+    return phoneText != null ? phoneText : PhoneNumber.unpack(phone);
+  }
+
+  public long getPackedPhone() {
     return phone;
   }
 
-  public Integer addToTotal(Integer amount) {
+  public int addToTotal(int amount) {
     return totalSpend += amount;
   }
 
-  public Integer getTotalSpend() {
+  public int getTotalSpend() {
     return totalSpend;
   }
 
   public String toHeaderString() {
-    return String.format(
-      "   | %-5s | %-15s | %-15s | %-15s |%n", "ID", "First Name", "Last Name", "Phone");
+    return TABLE.header();
   }
 
   public String toBodyString() {
-    return String.format(
-      "   | %-5s | %-15s | %-15s | %-15s |%n", clientId, firstName, lastName, phone);
+    return TABLE.row(this);
   }
 
   @Override
@@ -224,21 +446,205 @@ class Client implements HasPrimaryKey<Integer> {
 }
 
 
+// A booking to be made with its stylist already chosen
+class BookingRequest {
+  private final Integer clientId;
+  private final Stylist stylist;
+  private final LocalDateTime startTime;
+  private final Integer[] serviceIds;
+
+  BookingRequest(
+    Integer clientId, Stylist stylist, LocalDateTime startTime, Integer... serviceIds) {
+    this.clientId = clientId;
+    this.stylist = stylist;
+    this.startTime = startTime;
+    this.serviceIds = serviceIds;
+  }
+
+  public Integer getClientId() {
+    return clientId;
+  }
+
+  public Stylist getStylist() {
+    return stylist;
+  }
+
+  // Null for an unscheduled booking
+  public LocalDateTime getStartTime() {
+    return startTime;
+  }
+
+  public Integer[] getServiceIds() {
+    return serviceIds;
+  }
+}
+
+
 class SalonData {
-  RBTree<Integer, Service> serviceTree = new RBTree<>();
+  // Delivers the changes to every tree to their listeners in the order they were made
+  private final ChangeFeed changeFeed = new ChangeFeed(4096);
+  RBTree<Integer, Service> serviceTree = new RBTree<>("services", changeFeed);
   private Integer nextServiceId = 1;
-  RBTree<Integer, Booking> bookingTree = new RBTree<>();
+  // The two big trees keep their sequential ids in B+trees, the small ones are fine as TreeMaps
+  RBTree<Integer, Booking> bookingTree = new RBTree<>("bookings", new BPlusTree<>(), changeFeed);
   private Integer nextBookingId = 1;
-  RBTree<Integer, Client> clientTree = new RBTree<>();
+  RBTree<Integer, Client> clientTree = new RBTree<>("clients", new BPlusTree<>(), changeFeed);
   private Integer nextClientId = 1;
-  RBTree<Integer, Stylist> stylistTree = new RBTree<>();
+  RBTree<Integer, Stylist> stylistTree = new RBTree<>("stylists", changeFeed);
   private Integer nextStylistId = 1;
+  // Booked time slots of each stylist keyed by stylist id
+  private Map<Integer, Schedule> schedules = new HashMap<>();
+  // Scheduled bookings partitioned by day with rollups for date range reports
+  BookingPartitions bookingPartitions = new BookingPartitions();
+  // When set every change is appended to the log so followers can replay it
+  private MutationLog mutationLog;
+  // Results of the full scan reports, reused until a tree they read changes
+  private final QueryCache queryCache = new QueryCache(64);
+  // Bookings submitted from any thread, added in batches by the queue's writer thread
+  private final BookingQueue bookingQueue = new BookingQueue(this, 4096);
+  // Top stylists over the last 1000 bookings and the last hour in one minute buckets
+  private final StylistLeaderboard leaderboard =
+    new StylistLeaderboard(1000, 60, 60_000, System::currentTimeMillis);
+
+  public ChangeFeed getChangeFeed() {
+    return changeFeed;
+  }
+
+  public QueryCache getQueryCache() {
+    return queryCache;
+  }
+
+  public BookingQueue getBookingQueue() {
+    return bookingQueue;
+  }
+
+  public StylistLeaderboard getLeaderboard() {
+    return leaderboard;
+  }
+
+  public MutationLog getMutationLog() {
+    return mutationLog;
+  }
+
+  public void setMutationLog(MutationLog mutationLog) {
+    this.mutationLog = mutationLog;
+  }
+
+  // Create the secondary indexes the queries rely on. Call this before adding any data. The trees
+  // are empty so the indexes start empty and the trees keep them up to date from then on, a log
+  // replay or generated workload never has to build them again.
+  void createIndexes() {
+    // Secondary indexes by client last name, stylist name, client spend and stylist earnings
+    clientTree.saveIndex(
+      clientTree.<String>sort(clientEntry -> clientEntry.getValue().getLastName()),
+      "lastNameIndex");
+    stylistTree.saveIndex(
+      stylistTree.<String>sort(stylistEntry -> stylistEntry.getValue().getStylistName()),
+      "stylistNameIndex");
+    clientTree.saveIndex(
+      clientTree.<Integer>sort(clientEntry -> clientEntry.getValue().getTotalSpend()),
+      "totalSpendIndex");
+    stylistTree.saveIndex(
+      stylistTree.<Integer>sort(stylistEntry -> stylistEntry.getValue().getTotalEarnings()),
+      "totalEarningsIndex");
+
+    // Search indexes for finding clients by part of their name or phone number and stylists by
+    // part of their name
+    clientTree.saveSearchIndex(
+      new SearchIndex<>(
+        client -> List.of(
+          client.getFirstName(),
+          client.getLastName(),
+          client.getFirstName() + " " + client.getLastName(),
+          PhoneNumber.digits(client.getPhone()))),
+      "clientSearchIndex");
+    stylistTree.saveSearchIndex(
+      new SearchIndex<>(
+        stylist -> {
+          List<String> terms = new ArrayList<>(List.of(stylist.getStylistName()));
+          terms.addAll(Arrays.asList(stylist.getStylistName().split("\\s+")));
+          return terms;
+        }),
+      "stylistSearchIndex");
+
+    // Fed from the start so the leaderboard never has to scan the bookings
+    leaderboard.subscribe(bookingTree);
+
+    // Natural keys so an add can find the record it should update with one hash lookup
+    clientTree.saveNaturalKeyIndex(
+      new NaturalKeyIndex<>(Client::getPhone, PhoneNumber::digits), "clientPhoneKeys");
+    serviceTree.saveNaturalKeyIndex(
+      new NaturalKeyIndex<>(Service::getServiceName, SalonData::nameKey), "serviceNameKeys");
+    stylistTree.saveNaturalKeyIndex(
+      new NaturalKeyIndex<>(Stylist::getStylistName, SalonData::nameKey), "stylistNameKeys");
+  }
+
+  // Names match ignoring case and the spaces around and between words. Runs on every add so it
+  // avoids the regex a split would compile.
+  private static String nameKey(String name) {
+    StringBuilder key = new StringBuilder(name.length());
+    boolean space = false;
+    for (int i = 0; i < name.length(); i++) {
+      char c = name.charAt(i);
+      if (Character.isWhitespace(c)) {
+        space = key.length() > 0;
+      } else {
+        if (space) {
+          key.append(' ');
+          space = false;
+        }
+        key.append(c);
+      }
+    }
+    return key.toString().toLowerCase(Locale.ROOT);
+  }
+
+  // Any formatting of the number finds the client, only the digits are compared
+  public Client findClientByPhone(String phone) {
+    return clientTree.findByNaturalKey(phone, "clientPhoneKeys");
+  }
+
+  public Service findServiceByName(String serviceName) {
+    return serviceTree.findByNaturalKey(serviceName, "serviceNameKeys");
+  }
+
+  public Stylist findStylistByName(String stylistName) {
+    return stylistTree.findByNaturalKey(stylistName, "stylistNameKeys");
+  }
 
-  // TODO: need to check if they already exist in the system
-  // if they do then just update instead
   Service addService(String serviceName, Integer serviceCost) {
-    Service service = new Service(nextServiceId++, serviceName, serviceCost);
-    serviceTree.add(service);
+    return addService(serviceName, serviceCost, 30);
+  }
+
+  // Adds a service, or updates the price and length of the one with the same name ignoring case.
+  // Bookings already made keep the price they were charged.
+  Service addService(String serviceName, Integer serviceCost, Integer serviceDuration) {
+    Service service = findServiceByName(serviceName);
+    boolean added = service == null;
+    Transaction transaction = new Transaction();
+    if (added) {
+      service = new Service(nextServiceId, serviceName, serviceCost, serviceDuration);
+      transaction.insert(serviceTree, service);
+    } else {
+      int oldDuration = service.getServiceDuration();
+      transaction.update(
+        serviceTree,
+        service,
+        s -> s.setServiceDuration(serviceDuration),
+        s -> s.setServiceDuration(oldDuration));
+      if (service.getServiceCost() != serviceCost) {
+        transaction.update(
+          serviceTree,
+          service,
+          s -> s.setServiceCost(serviceCost, nextBookingId),
+          Service::undoSetServiceCost);
+      }
+    }
+    log(transaction, MutationLog.SERVICE, serviceName, serviceCost, serviceDuration);
+    transaction.commit();
+    if (added) {
+      nextServiceId++;
+    }
     return service;
   }
 
@@ -246,20 +652,143 @@ class SalonData {
   // if it has a unique key otherwise its not currently reliable. You can still index non unique
   // keys though to keep a list of values in order.
   Booking addBooking(Integer clientId, Stylist stylist, Integer... serviceIds) {
-    Integer totalServicesCost = calcTotalServicesCost(serviceIds);
-    // keep track of clients total spend and stylists revenue
-    stylist.addToTotal(totalServicesCost);
-    stylistTree.add(stylist); // will update the index
+    return addBooking(clientId, stylist, null, serviceIds);
+  }
+
+  // Book the stylist for a time slot starting at startTime, or an unscheduled booking if startTime
+  // is null
+  Booking addBooking(
+    Integer clientId, Stylist stylist, LocalDateTime startTime, Integer... serviceIds) {
+    return addBookings(List.of(new BookingRequest(clientId, stylist, startTime, serviceIds))).get(0);
+  }
+
+  /**
+   * Adds bookings in a single transaction. Every booking is checked before anything is written so
+   * either they are all added or, if any of them is invalid, none are.
+   *
+   * @param requests the bookings to add, each with the stylist already chosen
+   * @return the new bookings in the order they were requested
+   */
+  List<Booking> addBookings(List<BookingRequest> requests) {
+    Transaction transaction = new Transaction();
+    List<Booking> bookings = new ArrayList<>();
+    // Slots taken by the bookings staged so far, by stylist id
+    Map<Integer, Schedule> staged = new HashMap<>();
+    for (BookingRequest request : requests) {
+      bookings.add(stageBooking(transaction, request, nextBookingId + bookings.size(), staged));
+    }
+    logBookings(transaction, bookings);
+    transaction.commit();
+    nextBookingId += bookings.size();
+    return bookings;
+  }
+
+  // Writes the bookings to the mutation log with one flush as the transaction's last step
+  private void logBookings(Transaction transaction, List<Booking> bookings) {
+    if (mutationLog != null && !bookings.isEmpty()) {
+      List<Object[]> changes = new ArrayList<>(bookings.size());
+      for (Booking booking : bookings) {
+        // The stylist is logged rather than chosen again so followers don't depend on how it's
+        // picked
+        changes.add(
+          new Object[] {
+            booking.getClientId(),
+            booking.getStylistId(),
+            booking.getStartTime(),
+            booking.getServiceIds()
+          });
+      }
+      transaction.apply(() -> mutationLog.appendAll(MutationLog.BOOKING, changes), () -> {});
+    }
+  }
+
+  // Writes a change to the mutation log as the transaction's last step, so if the write fails
+  // everything before it is undone and the leader never keeps a change its followers won't see.
+  // The step is last so it never has to be undone itself.
+  private void log(Transaction transaction, String operation, Object... args) {
+    if (mutationLog != null) {
+      transaction.apply(() -> mutationLog.append(operation, args), () -> {});
+    }
+  }
+
+  // Check a booking and add its writes to the transaction. Bookings staged earlier in the same
+  // transaction count when checking the stylist is free.
+  private Booking stageBooking(
+    Transaction transaction, BookingRequest request, int bookingId, Map<Integer, Schedule> staged) {
+    Stylist stylist = request.getStylist();
+    Integer clientId = request.getClientId();
+    Integer[] serviceIds = request.getServiceIds();
+    LocalDateTime startTime = request.getStartTime();
+    if (stylist == null || stylistTree.get(stylist.getStylistId()) != stylist) {
+      throw new IllegalStateException("The stylist is not in the system");
+    }
+    Client client = null;
     if (clientId != null) {
-      Client client = clientTree.get(clientId);
-      client.addToTotal(totalServicesCost);
-      clientTree.add(client); // will update the index
+      client = clientTree.get(clientId);
+      if (client == null) {
+        throw new IllegalStateException("There is no client with id " + clientId);
+      }
+    }
+    for (Integer serviceId : serviceIds) {
+      if (serviceId == null || serviceTree.get(serviceId) == null) {
+        throw new IllegalStateException("There is no service with id " + serviceId);
+      }
+    }
+    LocalDateTime endTime = null;
+    if (startTime != null) {
+      endTime = startTime.plus(calcTotalServicesDuration(serviceIds));
+      if (!getSchedule(stylist.getStylistId()).isFree(startTime, endTime)
+        || !staged.computeIfAbsent(stylist.getStylistId(), id -> new Schedule())
+          .isFree(startTime, endTime)) {
+        throw new IllegalStateException(
+          stylist.getStylistName()
+            + " is already booked at "
+            + Booking.TIME_FORMAT.format(startTime));
+      }
+    }
+    int totalServicesCost = calcTotalServicesCost(serviceIds);
+    Booking booking =
+      new Booking(
+        bookingId,
+        clientId,
+        serviceIds,
+        stylist.getStylistId(),
+        totalServicesCost,
+        startTime,
+        endTime);
+
+    // keep track of clients total spend and stylists revenue, the trees update the indexes
+    transaction.update(
+      stylistTree,
+      stylist,
+      s -> s.addToTotal(totalServicesCost),
+      s -> s.addToTotal(-totalServicesCost));
+    if (client != null) {
+      transaction.update(
+        clientTree,
+        client,
+        c -> c.addToTotal(totalServicesCost),
+        c -> c.addToTotal(-totalServicesCost));
+    }
+    transaction.insert(bookingTree, booking);
+    if (booking.isScheduled()) {
+      staged.get(stylist.getStylistId()).add(booking);
+      Schedule schedule = getSchedule(stylist.getStylistId());
+      IntUnaryOperator serviceCost =
+        serviceId -> serviceTree.get(serviceId).getServiceCost(bookingId);
+      transaction.apply(() -> schedule.add(booking), () -> schedule.remove(booking));
+      transaction.apply(
+        () -> bookingPartitions.add(booking, serviceCost),
+        () -> bookingPartitions.remove(booking, serviceCost));
     }
-    Booking booking = new Booking(nextBookingId++, clientId, serviceIds, stylist.getStylistId());
-    bookingTree.add(booking);
     return booking;
   }
 
+  // Queue a booking to be added by the writer thread, see BookingQueue
+  CompletableFuture<Integer> submitBooking(BookingRequest request) {
+    return bookingQueue.submit(request);
+  }
+
   Booking addBooking(Integer clientId, Integer... serviceIds) {
     Stylist stylist = lowestEarnings();
     if (stylist == null) {
@@ -268,17 +797,69 @@ class SalonData {
     return addBooking(clientId, stylist, serviceIds);
   }
 
+  // Book the stylist who can start the services soonest at or after earliestStart
+  Booking addBooking(Integer clientId, LocalDateTime earliestStart, Integer... serviceIds) {
+    Map.Entry<Stylist, LocalDateTime> slot =
+      findEarliestFreeStylist(earliestStart, calcTotalServicesDuration(serviceIds));
+    if (slot == null) {
+      throw new IllegalStateException("No stylists in the system");
+    }
+    return addBooking(clientId, slot.getKey(), slot.getValue(), serviceIds);
+  }
+
+  // Adds a client, or updates the name of the one with the same phone number
   Client addClient(String firstName, String lastName, String phone) {
-    Client client = new Client(nextClientId++, firstName, lastName, phone);
-    clientTree.add(client);
+    Client client = findClientByPhone(phone);
+    boolean added = client == null;
+    Transaction transaction = new Transaction();
+    if (added) {
+      client = new Client(nextClientId, firstName, lastName, phone);
+      transaction.insert(clientTree, client);
+    } else {
+      // Renaming moves the client in the name and search indexes, if one of them fails the
+      // transaction puts the old name back everywhere
+      String oldFirstName = client.getFirstName();
+      String oldLastName = client.getLastName();
+      transaction.update(
+        clientTree,
+        client,
+        c -> c.setName(firstName, lastName),
+        c -> c.setName(oldFirstName, oldLastName));
+    }
+    log(transaction, MutationLog.CLIENT, firstName, lastName, phone);
+    transaction.commit();
+    // Ids are only used up once the add has committed, so a failed add doesn't leave a gap that
+    // followers replaying the log wouldn't have
+    if (added) {
+      nextClientId++;
+    }
     return client;
   }
 
+  // Adds a stylist, or updates the title of the one with the same name ignoring case
   Stylist addStylist(String stylistName, String title) {
-    Stylist stylist = new Stylist(nextStylistId++, stylistName, title);
-    stylistTree.add(stylist);
-    // Add a sentinel bookings so that lowestEarnings picks up clients
-    addBooking(null, stylist);
+    Stylist stylist = findStylistByName(stylistName);
+    if (stylist != null) {
+      String oldTitle = stylist.getTitle();
+      Transaction transaction = new Transaction();
+      transaction.update(stylistTree, stylist, s -> s.setTitle(title), s -> s.setTitle(oldTitle));
+      log(transaction, MutationLog.STYLIST, stylistName, title);
+      transaction.commit();
+    } else {
+      stylist = new Stylist(nextStylistId, stylistName, title);
+      // Add a sentinel booking so that lowestEarnings picks up the stylist. It goes in with the
+      // stylist so neither is kept without the other, and isn't logged on its own as replaying the
+      // stylist adds it again.
+      Booking sentinel =
+        new Booking(nextBookingId, null, new Integer[0], stylist.getStylistId(), 0);
+      Transaction transaction = new Transaction();
+      transaction.insert(stylistTree, stylist);
+      transaction.insert(bookingTree, sentinel);
+      log(transaction, MutationLog.STYLIST, stylistName, title);
+      transaction.commit();
+      nextStylistId++;
+      nextBookingId++;
+    }
     return stylist;
   }
 
@@ -290,26 +871,65 @@ class SalonData {
     return totalCost;
   }
 
+  // What the booking was charged, which stays the same when its services are repriced
+  public int calcTotalServicesCost(Booking booking) {
+    return booking.getTotalCost();
+  }
+
+  public Duration calcTotalServicesDuration(Integer[] serviceIds) {
+    int minutes = 0;
+    for (Integer serviceId : serviceIds) {
+      minutes += serviceTree.get(serviceId).getServiceDuration();
+    }
+    return Duration.ofMinutes(minutes);
+  }
+
+  public Schedule getSchedule(Integer stylistId) {
+    return schedules.computeIfAbsent(stylistId, id -> new Schedule());
+  }
+
+  // Search every stylist's schedule for the one who is free soonest for a slot of the given length.
+  // Each schedule lookup is O(log n + k) where k is the number of back to back bookings it has to
+  // walk past, so this is O(stylists * (log n + k)). k is small unless stylists are booked solid
+  // well past the start, so it's cheap enough to run for every walk in. Ties go to the stylist with
+  // the lowest earnings to keep the work spread out.
+  public Map.Entry<Stylist, LocalDateTime> findEarliestFreeStylist(
+    LocalDateTime from, Duration length) {
+    Stylist bestStylist = null;
+    LocalDateTime bestStart = null;
+    for (Stylist stylist : stylistTree.getPrimaryStore().values()) {
+      LocalDateTime start = getSchedule(stylist.getStylistId()).earliestFree(from, length);
+      if (bestStart == null
+        || start.isBefore(bestStart)
+        || (start.isEqual(bestStart)
+          && stylist.getTotalEarnings() < bestStylist.getTotalEarnings())) {
+        bestStylist = stylist;
+        bestStart = start;
+      }
+    }
+    return bestStylist == null ? null : new AbstractMap.SimpleEntry<>(bestStylist, bestStart);
+  }
+
   public Stylist lowestEarnings() {
-    Aggregate<String, Result<Booking, Integer>, Result<Booking, Integer>> aggragate =
+    // Ties go to the highest stylist id
+    Map.Entry<Integer, Integer> lowest =
       bookingTree
-        .aggregate(
-          0,
-          (b, i) -> b.getStylistId(),
-          (acc, b) -> acc + calcTotalServicesCost(b.getServiceIds()))
-        .aggregate(
-          null,
-          (b, i) -> "min",
-          (acc, result) -> {
-            if (acc == null || result.getAccumulator() <= acc.getAccumulator()) {
-              return result;
-            } else {
-              return acc;
-            }
-          });
+        .query()
+        .parallel()
+        .groupBy(Booking::getStylistId)
+        .reduce(0, (acc, b) -> acc + calcTotalServicesCost(b), Integer::sum)
+        .orderBy(
+          Map.Entry.<Integer, Integer>comparingByValue()
+            .thenComparing(Map.Entry.comparingByKey(Comparator.reverseOrder())))
+        .first();
+
+    return lowest == null ? null : stylistTree.get(lowest.getKey());
+  }
 
-    Integer lowestStylistId = aggragate.get("min").getAccumulator().getValue(0).getStylistId();
-    return stylistTree.get(lowestStylistId);
+  // Number of scheduled bookings each stylist has between two days inclusive. Only the partitions
+  // in the range are read and their rollups combined.
+  public Map<Integer, Integer> countStylistBookings(LocalDate from, LocalDate to) {
+    return bookingPartitions.stylistBookings(from, to);
   }
 
   // Method to count the total number of bookings each stylist has completed
@@ -319,6 +939,11 @@ class SalonData {
   }
 
   public Aggregate<Integer, Booking, Aggregate<Integer, Booking, Integer>> countStylistsClients() {
+    return queryCache.get(
+      this::countStylistsClientsUncached, List.of(bookingTree), "countStylistsClients");
+  }
+
+  private Aggregate<Integer, Booking, Aggregate<Integer, Booking, Integer>> countStylistsClientsUncached() {
     return bookingTree.aggregate(
       null,
       (b, i) -> b.getStylistId(),
@@ -333,6 +958,46 @@ class SalonData {
       });
   }
 
+  // Count how many bookings each stylist has had with each client in a single flat table keyed by
+  // packed stylist and client ids rather than an Aggregate per stylist. Sentinel bookings have no
+  // client so they are skipped.
+  public PairCounter countStylistsClientsCompact() {
+    return queryCache.get(
+      this::countStylistsClientsCompactUncached,
+      List.of(bookingTree),
+      "countStylistsClientsCompact");
+  }
+
+  private PairCounter countStylistsClientsCompactUncached() {
+    PairCounter counter = new PairCounter();
+    for (Booking booking : bookingTree.getPrimaryStore().values()) {
+      Integer clientId = booking.getClientId();
+      if (clientId != null) {
+        counter.increment(booking.getStylistId(), clientId);
+      }
+    }
+    return counter;
+  }
+
+  // Approximate number of distinct clients each stylist has served in a fixed 1KB per stylist
+  public Map<Integer, HyperLogLog> countStylistsDistinctClientsApprox() {
+    return queryCache.get(
+      this::countStylistsDistinctClientsApproxUncached,
+      List.of(bookingTree),
+      "countStylistsDistinctClientsApprox");
+  }
+
+  private Map<Integer, HyperLogLog> countStylistsDistinctClientsApproxUncached() {
+    Map<Integer, HyperLogLog> result = new TreeMap<>();
+    for (Booking booking : bookingTree.getPrimaryStore().values()) {
+      Integer clientId = booking.getClientId();
+      if (clientId != null) {
+        result.computeIfAbsent(booking.getStylistId(), id -> new HyperLogLog()).add(clientId);
+      }
+    }
+    return result;
+  }
+
   // Sort all clients by service cost using cached value on client (highest cost first)
   public IndexTree<Integer, Integer, Client> sortClientsServiceCostCached() {
     return clientTree.sort(
@@ -345,26 +1010,73 @@ class SalonData {
       .aggregate(
         0,
         (b, i) -> b.getClientId(),
-        (acc, b) -> acc + calcTotalServicesCost(b.getServiceIds()))
+        (acc, b) -> acc + calcTotalServicesCost(b))
       .sort(spendEntry -> spendEntry.getValue().getAccumulator(), Comparator.reverseOrder());
   }
 
-  public IndexTree<Integer, String, Client> sortClientsByLastName() {
-    return clientTree.sort(clientEntry -> clientEntry.getValue().getLastName());
+  // Ties are broken by id so the results don't depend on the order clients are stored in
+  private static final Comparator<Client> BY_TOTAL_SPEND =
+    Comparator.comparingInt(Client::getTotalSpend)
+      .thenComparing(Comparator.comparingInt(Client::getClientId).reversed());
+
+  // The k highest spending clients using the cached total on client, highest first. A bounded heap
+  // is used rather than totalSpendIndex as index keys are strings so spends don't sort numerically.
+  public List<Client> topClientsByTotalSpend(int k) {
+    return clientTree.topK(k, BY_TOTAL_SPEND);
   }
 
-  // Method to calculate the total cost of each service type
-  public Aggregate<Integer, Booking, Integer> calculateServiceRevenue() {
-    return bookingTree.aggregate(
-      0,
-      (b, i) -> i == null ? 0 : b.getServiceIds()[i],
-      (acc, b, aggregate) -> {
-        Integer[] serviceIds = b.getServiceIds();
-        for (int i = 0; i < serviceIds.length; i++) {
-          aggregate.put(b, i, acc + serviceTree.get(serviceIds[i]).getServiceCost());
-        }
-        return acc;
-      });
+  // The k lowest spending clients using the cached total on client, lowest first
+  public List<Client> bottomClientsByTotalSpend(int k) {
+    return clientTree.bottomK(k, BY_TOTAL_SPEND);
+  }
+
+  // Reads the kept up to date lastNameIndex in order rather than sorting every client again. Once
+  // the index has been quiet for a while this is a scan of its frozen copy's arrays.
+  public List<Client> sortClientsByLastName() {
+    IndexTree<Integer, String, Client> index = clientTree.getIndex("lastNameIndex");
+    // Every key sorts at or after the empty string and before a lone last character
+    return index.range("", String.valueOf(Character.MAX_VALUE));
+  }
+
+  // Method to calculate the total cost of each service type, a map of service id to revenue
+  // ordered by service id
+  public Map<Integer, Integer> calculateServiceRevenue() {
+    return queryCache.get(
+      this::calculateServiceRevenueUncached,
+      List.of(bookingTree, serviceTree),
+      "calculateServiceRevenue");
+  }
+
+  // Sums into totals indexed by service id reading each booking's packed ids in place, so the
+  // loop over the bookings doesn't box or allocate
+  private Map<Integer, Integer> calculateServiceRevenueUncached() {
+    Service[] services = new Service[nextServiceId];
+    for (Service service : serviceTree.getPrimaryStore().values()) {
+      services[service.getServiceId()] = service;
+    }
+    IdTotals revenue = new IdTotals();
+    for (Booking booking : bookingTree.getPrimaryStore().values()) {
+      for (int i = 0; i < booking.serviceIdCount(); i++) {
+        int serviceId = booking.serviceIdAt(i);
+        revenue.add(serviceId, services[serviceId].getServiceCost(booking.getBookingId()));
+      }
+    }
+    return revenue.toMap();
+  }
+
+  // Revenue of each service from scheduled bookings between two days inclusive, combined from the
+  // rollups of the partitions in the range
+  public Map<Integer, Integer> calculateServiceRevenue(LocalDate from, LocalDate to) {
+    return queryCache.get(
+      () -> calculateServiceRevenueUncached(from, to),
+      List.of(bookingTree, serviceTree),
+      "calculateServiceRevenue",
+      from,
+      to);
+  }
+
+  private Map<Integer, Integer> calculateServiceRevenueUncached(LocalDate from, LocalDate to) {
+    return bookingPartitions.serviceRevenue(from, to);
   }
 
   public Client findClientWithLowestServiceCost() {
@@ -373,9 +1085,7 @@ class SalonData {
         null, // set initial value to null
         (b, i) -> "min", // set key to store the min value
         (acc, b) -> { // keep track of the lowest
-          if (acc == null
-            || calcTotalServicesCost(b.getServiceIds()) <= calcTotalServicesCost(
-              acc.getServiceIds())) {
+          if (acc == null || calcTotalServicesCost(b) <= calcTotalServicesCost(acc)) {
             return b;
           } else {
             return acc;
@@ -401,25 +1111,15 @@ class SalonData {
   }
 
   public Client findClientWithLowestTotalServiceCost() {
-    Aggregate<String, Result<Booking, Integer>, Result<Booking, Integer>> aggragate =
-      bookingTree
-        .aggregate(
-          0,
-          (b, i) -> b.getClientId(),
-          (acc, b) -> acc + calcTotalServicesCost(b.getServiceIds()))
-        .aggregate(
-          null,
-          (b, i) -> "min",
-          (acc, result) -> {
-            if (acc == null || result.getAccumulator() <= acc.getAccumulator()) {
-              return result;
-            } else {
-              return acc;
-            }
-          });
-
-    Integer lowestSpendClientId = aggragate.get("min").getAccumulator().getValue(0).getClientId();
-    return clientTree.get(lowestSpendClientId);
+    // Ties go to the highest client id
+    Map.Entry<Integer, Integer> lowest =
+      clientSpend()
+        .orderBy(
+          Map.Entry.<Integer, Integer>comparingByValue()
+            .thenComparing(Map.Entry.comparingByKey(Comparator.reverseOrder())))
+        .first();
+
+    return lowest == null ? null : clientTree.get(lowest.getKey());
   }
 
   public Client findClientWithHighestServiceCost() {
@@ -428,9 +1128,7 @@ class SalonData {
         null, // set initial value to null
         (b, i) -> "max", // set key to store the max value
         (acc, b) -> { // keep track of the highest
-          if (acc == null
-            || calcTotalServicesCost(b.getServiceIds()) > calcTotalServicesCost(
-              acc.getServiceIds())) {
+          if (acc == null || calcTotalServicesCost(b) > calcTotalServicesCost(acc)) {
             return b;
           } else {
             return acc;
@@ -456,25 +1154,46 @@ class SalonData {
   }
 
   public Client findClientWithHighestTotalServiceCost() {
-    Aggregate<String, Result<Booking, Integer>, Result<Booking, Integer>> aggragate =
-      bookingTree
-        .aggregate(
-          0,
-          (b, i) -> b.getClientId(),
-          (acc, b) -> acc + calcTotalServicesCost(b.getServiceIds()))
-        .aggregate(
-          null,
-          (b, i) -> "max",
-          (acc, result) -> {
-            if (acc == null || result.getAccumulator() > acc.getAccumulator()) {
-              return result;
-            } else {
-              return acc;
-            }
-          });
+    // Ties go to the lowest client id
+    Map.Entry<Integer, Integer> highest =
+      clientSpend()
+        .orderBy(
+          Map.Entry.<Integer, Integer>comparingByValue(Comparator.reverseOrder())
+            .thenComparing(Map.Entry.comparingByKey()))
+        .first();
+
+    return highest == null ? null : clientTree.get(highest.getKey());
+  }
+
+  // Total cost of each client's bookings, the stylists' sentinel bookings have no client
+  private ReducedQuery<Integer, Integer> clientSpend() {
+    return bookingTree
+      .query()
+      .parallel()
+      .filter(b -> b.getClientId() != null)
+      .groupBy(Booking::getClientId)
+      .reduce(0, (acc, b) -> acc + calcTotalServicesCost(b), Integer::sum);
+  }
+
+  // The k stylists who earned most over the last bookings, including every booking added so far
+  public List<LeaderboardEntry> topStylistsOverRecentBookings(int k) {
+    changeFeed.sync();
+    return leaderboard.topOverRecentBookings(k);
+  }
+
+  public List<LeaderboardEntry> topStylistsOverRecentTime(int k) {
+    changeFeed.sync();
+    return leaderboard.topOverRecentTime(k);
+  }
+
+  // Find clients by part of their first name, last name or phone number allowing for typos
+  public List<Client> searchClients(String text, int limit) {
+    return clientTree.search(text, "clientSearchIndex", limit);
+  }
 
-    Integer highestSpendClientId = aggragate.get("max").getAccumulator().getValue(0).getClientId();
-    return clientTree.get(highestSpendClientId);
+  // Find stylists by part of their name allowing for typos
+  public List<Stylist> searchStylists(String text, int limit) {
+    return stylistTree.search(text, "stylistSearchIndex", limit);
   }
 
   // Find the allocated customers to stylist with their required services
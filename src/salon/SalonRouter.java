@@ -0,0 +1,144 @@
+package salon;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+
+/**
+ * Routes requests to one SalonData shard per branch of the salon chain.
+ *
+ * <p>Each branch has its own data and indexes so writes to one branch never touch another. Queries
+ * over the whole chain are scattered to every branch in parallel and the partial results are
+ * merged once they have all come back, so adding a branch doesn't slow down the others.
+ */
+class SalonRouter {
+  private final Map<String, SalonData> branches = new LinkedHashMap<>();
+  private final ExecutorService executor =
+    Executors.newFixedThreadPool(
+      Runtime.getRuntime().availableProcessors(),
+      runnable -> {
+        Thread thread = new Thread(runnable, "salon-router");
+        // Don't keep the JVM alive once the command line exits
+        thread.setDaemon(true);
+        return thread;
+      });
+
+  /**
+   * Adds a new branch with an empty, indexed SalonData or returns the existing one.
+   *
+   * @param branchName the name of the branch
+   * @return the SalonData for the branch
+   */
+  public SalonData addBranch(String branchName) {
+    return branches.computeIfAbsent(
+      branchName,
+      name -> {
+        SalonData salonData = new SalonData();
+        salonData.createIndexes();
+        return salonData;
+      });
+  }
+
+  public SalonData getBranch(String branchName) {
+    return branches.get(branchName);
+  }
+
+  public Map<String, SalonData> getBranches() {
+    return Collections.unmodifiableMap(branches);
+  }
+
+  /**
+   * Runs a query against every branch in parallel and gathers the results.
+   *
+   * @param query the query to run on each branch
+   * @param <R> the type of the query result
+   * @return a map of branch name to the result for that branch in the order branches were added
+   */
+  public <R> Map<String, R> scatter(Function<SalonData, R> query) {
+    List<Map.Entry<String, CompletableFuture<R>>> futures = new ArrayList<>();
+    for (Map.Entry<String, SalonData> branch : branches.entrySet()) {
+      futures.add(
+        new AbstractMap.SimpleEntry<>(
+          branch.getKey(),
+          CompletableFuture.supplyAsync(() -> query.apply(branch.getValue()), executor)));
+    }
+    Map<String, R> results = new LinkedHashMap<>();
+    for (Map.Entry<String, CompletableFuture<R>> future : futures) {
+      results.put(future.getKey(), future.getValue().join());
+    }
+    return results;
+  }
+
+  // Branches without clients are skipped as the spend queries need at least one client
+  public Map.Entry<String, Client> findClientWithHighestTotalServiceCost() {
+    Map.Entry<String, Client> highest = null;
+    for (Map.Entry<String, Client> partial : scatter(SalonRouter::highestSpender).entrySet()) {
+      Client client = partial.getValue();
+      if (client != null
+        && (highest == null || client.getTotalSpend() > highest.getValue().getTotalSpend())) {
+        highest = partial;
+      }
+    }
+    return highest;
+  }
+
+  public Map.Entry<String, Client> findClientWithLowestTotalServiceCost() {
+    Map.Entry<String, Client> lowest = null;
+    for (Map.Entry<String, Client> partial : scatter(SalonRouter::lowestSpender).entrySet()) {
+      Client client = partial.getValue();
+      if (client != null
+        && (lowest == null || client.getTotalSpend() <= lowest.getValue().getTotalSpend())) {
+        lowest = partial;
+      }
+    }
+    return lowest;
+  }
+
+  // Service ids are only unique within a branch so the revenue is merged by service name
+  public Map<String, Integer> calculateServiceRevenue() {
+    Map<String, Integer> revenue = new TreeMap<>();
+    for (Map<String, Integer> partial : scatter(SalonRouter::serviceRevenueByName).values()) {
+      partial.forEach((name, amount) -> revenue.merge(name, amount, Integer::sum));
+    }
+    return revenue;
+  }
+
+  // Stylists only work at one branch so the allocations are kept per branch
+  public Map<String, PairCounter> countStylistsClients() {
+    return scatter(SalonData::countStylistsClientsCompact);
+  }
+
+  private static Client highestSpender(SalonData salonData) {
+    return salonData.clientTree.getPrimaryStore().isEmpty()
+      ? null
+      : salonData.findClientWithHighestTotalServiceCostCached();
+  }
+
+  private static Client lowestSpender(SalonData salonData) {
+    return salonData.clientTree.getPrimaryStore().isEmpty()
+      ? null
+      : salonData.findClientWithLowestTotalServiceCostCached();
+  }
+
+  private static Map<String, Integer> serviceRevenueByName(SalonData salonData) {
+    Map<String, Integer> revenue = new TreeMap<>();
+    salonData
+      .calculateServiceRevenue()
+      .forEach(
+        (serviceId, amount) -> {
+          Service service = salonData.serviceTree.get(serviceId);
+          if (service != null) {
+            revenue.merge(service.getServiceName(), amount, Integer::sum);
+          }
+        });
+    return revenue;
+  }
+}
@@ -0,0 +1,82 @@
+package salon;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Calendar of the time slots booked for a single stylist.
+ *
+ * <p>A stylist can only be in one place at a time so the booked intervals never overlap. That
+ * means the intervals can be kept in a tree keyed by start time and a conflict check only has to
+ * look at the slot either side of the requested start, which is O(log n).
+ */
+class Schedule {
+  private final TreeMap<LocalDateTime, Booking> slots = new TreeMap<>();
+
+  /**
+   * Checks that no booked slot overlaps the interval [start, end).
+   *
+   * @param start the start of the interval
+   * @param end the end of the interval
+   * @return true if the interval is free
+   */
+  public boolean isFree(LocalDateTime start, LocalDateTime end) {
+    Map.Entry<LocalDateTime, Booking> before = slots.floorEntry(start);
+    if (before != null && before.getValue().getEndTime().isAfter(start)) {
+      return false;
+    }
+    Map.Entry<LocalDateTime, Booking> after = slots.higherEntry(start);
+    return after == null || !after.getKey().isBefore(end);
+  }
+
+  /**
+   * Finds the earliest start time at or after from where a slot of the given length is free.
+   *
+   * <p>Finding the booking at from is O(log n), then the bookings after it are walked one at a
+   * time until there is a big enough gap, so the whole search is O(log n + k) for the k bookings
+   * walked past. A fully booked day in front of from is walked in full, the tree doesn't keep
+   * the gaps between bookings to skip it.
+   *
+   * @param from the earliest acceptable start time
+   * @param length the length of the slot needed
+   * @return the earliest free start time
+   */
+  public LocalDateTime earliestFree(LocalDateTime from, Duration length) {
+    LocalDateTime start = from;
+    Map.Entry<LocalDateTime, Booking> before = slots.floorEntry(start);
+    if (before != null && before.getValue().getEndTime().isAfter(start)) {
+      start = before.getValue().getEndTime();
+    }
+    // Walk forward through the following bookings until there is a big enough gap
+    for (Booking booking : slots.tailMap(start, true).values()) {
+      if (!booking.getStartTime().isBefore(start.plus(length))) {
+        break;
+      }
+      start = booking.getEndTime();
+    }
+    return start;
+  }
+
+  public void add(Booking booking) {
+    if (!isFree(booking.getStartTime(), booking.getEndTime())) {
+      throw new IllegalStateException(
+        "Stylist " + booking.getStylistId() + " is already booked at " + booking.getStartTime());
+    }
+    slots.put(booking.getStartTime(), booking);
+  }
+
+  public void remove(Booking booking) {
+    slots.remove(booking.getStartTime(), booking);
+  }
+
+  // When the stylist's last booked slot ends, or null if nothing is booked
+  public LocalDateTime lastEnd() {
+    return slots.isEmpty() ? null : slots.lastEntry().getValue().getEndTime();
+  }
+
+  public int size() {
+    return slots.size();
+  }
+}
@@ -0,0 +1,302 @@
+package salon;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.function.Function;
+
+/**
+ * Text search index over the values of a tree supporting prefix, substring and typo tolerant
+ * matches.
+ *
+ * <p>Terms are kept lower case in a sorted map so every term starting with a prefix is one range
+ * of the map. Each term is also broken into trigrams which are used to find candidate terms for
+ * substring matches, such as part of a phone number, and for misspelt names. The candidates are
+ * then checked with an edit distance that gives up as soon as it's over the limit.
+ *
+ * @param <K> the type of primary keys in the tree
+ * @param <V> the type of values in the tree
+ */
+class SearchIndex<K extends Comparable<? super K>, V> {
+  private static final int GRAM_LENGTH = 3;
+  private final Function<V, List<String>> termExtractor;
+  // term to the primary keys of the values that have it
+  private final TreeMap<String, Set<K>> terms = new TreeMap<>();
+  // trigram to the terms that contain it, bucketed by term length so typo matching only has to look
+  // at terms of about the right length
+  private final Map<String, TreeMap<Integer, Set<String>>> grams = new HashMap<>();
+  // primary key to the terms indexed for it so they can be removed when the value changes
+  private final Map<K, List<String>> keyTerms = new HashMap<>();
+
+  /**
+   * Constructs a SearchIndex with a function giving the searchable terms of a value.
+   *
+   * @param termExtractor function to extract the terms to index from a value
+   */
+  SearchIndex(Function<V, List<String>> termExtractor) {
+    this.termExtractor = termExtractor;
+  }
+
+  /**
+   * Indexes a value, replacing the terms indexed for its key before. Does nothing if the terms
+   * haven't changed.
+   *
+   * @param key the primary key of the value
+   * @param value the value to index
+   */
+  public void update(K key, V value) {
+    // A term is only posted once per key, so a client called Thomas Thomas has one term
+    Set<String> distinct = new LinkedHashSet<>();
+    for (String term : termExtractor.apply(value)) {
+      if (term != null && !term.isBlank()) {
+        distinct.add(normalise(term));
+      }
+    }
+    List<String> newTerms = new ArrayList<>(distinct);
+    List<String> oldTerms = keyTerms.put(key, newTerms);
+    if (newTerms.equals(oldTerms)) {
+      return;
+    }
+    if (oldTerms != null) {
+      removeTerms(key, oldTerms);
+    }
+    for (String term : newTerms) {
+      // Sorted so values sharing a term come back in a stable order
+      Set<K> keys = terms.computeIfAbsent(term, t -> new TreeSet<>());
+      if (keys.isEmpty()) {
+        for (String gram : grams(term)) {
+          grams
+            .computeIfAbsent(gram, g -> new TreeMap<>())
+            .computeIfAbsent(term.length(), length -> new HashSet<>())
+            .add(term);
+        }
+      }
+      keys.add(key);
+    }
+  }
+
+  // Stop a value being found
+  public void remove(K key) {
+    List<String> oldTerms = keyTerms.remove(key);
+    if (oldTerms != null) {
+      removeTerms(key, oldTerms);
+    }
+  }
+
+  /**
+   * Finds the keys of the values best matching the query. Terms starting with the query come
+   * first, then terms containing it and then terms within a couple of typos of it. Each stage only
+   * runs if the ones before it didn't find enough matches.
+   *
+   * @param query the text to search for
+   * @param limit the most keys to return
+   * @return the matching keys, best match first
+   */
+  public List<K> search(String query, int limit) {
+    String normalised = normalise(query);
+    Set<K> result = new LinkedHashSet<>();
+    if (normalised.isEmpty() || limit <= 0) {
+      return new ArrayList<>();
+    }
+    // Prefix matches are one range of the sorted terms
+    for (Set<K> keys : terms.subMap(normalised, normalised + Character.MAX_VALUE).values()) {
+      addKeys(result, keys, limit);
+      if (result.size() >= limit) {
+        return new ArrayList<>(result);
+      }
+    }
+    if (normalised.length() < GRAM_LENGTH) {
+      return new ArrayList<>(result);
+    }
+    // Substring matches have every trigram of the query and are at least as long, so check the
+    // terms of the rarest trigram against the others. They all rank the same so stop at the limit.
+    int length = normalised.length();
+    List<TreeMap<Integer, Set<String>>> postings = new ArrayList<>();
+    for (String gram : grams(normalised)) {
+      postings.add(grams.getOrDefault(gram, new TreeMap<>()));
+    }
+    postings.sort(Comparator.comparingInt(posting -> count(posting.tailMap(length, true))));
+    for (Set<String> bucket : postings.get(0).tailMap(length, true).values()) {
+      for (String term : bucket) {
+        if (containsAll(postings, term) && term.contains(normalised)) {
+          addKeys(result, terms.get(term), limit);
+          if (result.size() >= limit) {
+            return new ArrayList<>(result);
+          }
+        }
+      }
+    }
+    // Typo tolerant matches share at least one trigram and are close to the same length. Keep the
+    // best in a bounded heap ordered worst first so it can be trimmed as it goes.
+    int maxEdits = length <= 4 ? 1 : 2;
+    Set<String> candidates = new HashSet<>();
+    for (TreeMap<Integer, Set<String>> posting : postings) {
+      posting
+        .subMap(length - maxEdits, true, length + maxEdits, true)
+        .values()
+        .forEach(candidates::addAll);
+    }
+    Comparator<Map.Entry<String, Integer>> byEdits =
+      Map.Entry.<String, Integer>comparingByValue().thenComparing(Map.Entry.comparingByKey());
+    PriorityQueue<Map.Entry<String, Integer>> best = new PriorityQueue<>(byEdits.reversed());
+    for (String term : candidates) {
+      int edits = editDistance(normalised, term, maxEdits);
+      if (edits <= maxEdits) {
+        best.add(Map.entry(term, edits));
+        if (best.size() > limit) {
+          best.poll();
+        }
+      }
+    }
+    List<Map.Entry<String, Integer>> ranked = new ArrayList<>(best);
+    ranked.sort(byEdits);
+    for (Map.Entry<String, Integer> match : ranked) {
+      addKeys(result, terms.get(match.getKey()), limit);
+    }
+    return new ArrayList<>(result);
+  }
+
+  public int size() {
+    return terms.size();
+  }
+
+  /**
+   * Estimates the memory held by the index from its sizes and a sample of its terms.
+   *
+   * @return the estimated bytes
+   */
+  public long estimatedBytes() {
+    if (terms.isEmpty()) {
+      return MemoryEstimator.treeMap(0) + 2 * MemoryEstimator.hashMap(0);
+    }
+    // Each term has a sorted set of keys, which is a TreeMap inside a TreeSet
+    long keysPerTerm = 0;
+    int sampled = 0;
+    for (Set<K> keys : terms.values()) {
+      keysPerTerm += keys.size();
+      if (++sampled == 256) {
+        break;
+      }
+    }
+    long postings = keysPerTerm * terms.size() / sampled;
+    long termBytes =
+      MemoryEstimator.treeMap(terms.size())
+        + MemoryEstimator.strings(terms.keySet())
+        + terms.size() * (16 + MemoryEstimator.TREE_MAP)
+        + postings * (MemoryEstimator.TREE_MAP_ENTRY + MemoryEstimator.BOXED);
+    // Every term is in a bucket of each of its trigrams, keyed by trigram then length
+    long gramBytes =
+      MemoryEstimator.hashMap(grams.size())
+        + grams.size() * (MemoryEstimator.string("abc") + MemoryEstimator.treeMap(1))
+        + terms.size() * (long) averageGrams() * MemoryEstimator.HASH_MAP_NODE;
+    // The terms are shared with the term map, each key has a list of them
+    long keyTermBytes =
+      MemoryEstimator.hashMap(keyTerms.size())
+        + keyTerms.size() * (24 + MemoryEstimator.array(10, MemoryEstimator.REFERENCE));
+    return termBytes + gramBytes + keyTermBytes;
+  }
+
+  private int averageGrams() {
+    long total = 0;
+    int sampled = 0;
+    for (String term : terms.keySet()) {
+      total += Math.max(0, term.length() - GRAM_LENGTH + 1);
+      if (++sampled == 256) {
+        break;
+      }
+    }
+    return (int) (total / sampled);
+  }
+
+  private void removeTerms(K key, List<String> oldTerms) {
+    for (String term : oldTerms) {
+      Set<K> keys = terms.get(term);
+      // Already gone if the list had the term twice
+      if (keys == null || !keys.remove(key)) {
+        continue;
+      }
+      if (keys.isEmpty()) {
+        terms.remove(term);
+        for (String gram : grams(term)) {
+          grams.get(gram).get(term.length()).remove(term);
+        }
+      }
+    }
+  }
+
+  private static boolean containsAll(List<TreeMap<Integer, Set<String>>> postings, String term) {
+    for (TreeMap<Integer, Set<String>> posting : postings) {
+      Set<String> bucket = posting.get(term.length());
+      if (bucket == null || !bucket.contains(term)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static int count(Map<Integer, Set<String>> buckets) {
+    int count = 0;
+    for (Set<String> bucket : buckets.values()) {
+      count += bucket.size();
+    }
+    return count;
+  }
+
+  private void addKeys(Set<K> result, Set<K> keys, int limit) {
+    for (K key : keys) {
+      if (result.size() >= limit) {
+        return;
+      }
+      result.add(key);
+    }
+  }
+
+  private static String normalise(String term) {
+    return term.trim().toLowerCase(Locale.ROOT);
+  }
+
+  private static Set<String> grams(String term) {
+    Set<String> result = new HashSet<>();
+    for (int i = 0; i + GRAM_LENGTH <= term.length(); i++) {
+      result.add(term.substring(i, i + GRAM_LENGTH));
+    }
+    return result;
+  }
+
+  // Levenshtein distance that stops once every path is over max, returning max + 1
+  private static int editDistance(String a, String b, int max) {
+    if (Math.abs(a.length() - b.length()) > max) {
+      return max + 1;
+    }
+    int[] previous = new int[b.length() + 1];
+    int[] current = new int[b.length() + 1];
+    for (int j = 0; j <= b.length(); j++) {
+      previous[j] = j;
+    }
+    for (int i = 1; i <= a.length(); i++) {
+      current[0] = i;
+      int rowMin = current[0];
+      for (int j = 1; j <= b.length(); j++) {
+        int cost = a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1;
+        current[j] = Math.min(Math.min(current[j - 1], previous[j]) + 1, previous[j - 1] + cost);
+        rowMin = Math.min(rowMin, current[j]);
+      }
+      if (rowMin > max) {
+        return max + 1;
+      }
+      int[] swap = previous;
+      previous = current;
+      current = swap;
+    }
+    return previous[b.length()];
+  }
+}
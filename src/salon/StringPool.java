@@ -0,0 +1,46 @@
+package salon;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+// Shares one copy of each repeated string, such as stylist titles, service names and common first
+// names, between every record that uses it. A pooled reference costs the same as a dictionary code
+// but needs no lookup to read the value back. The pool is shared by every branch and the follower
+// thread so it has to be thread safe.
+//
+// Only fields with few distinct values are worth pooling, a unique value such as a last name or
+// phone number would just be held forever. The pool is bounded as well, once it is full new
+// strings are used as they are and only those already pooled are shared.
+final class StringPool {
+  // Far more than there are titles and service names, with room for the common first names
+  static final int MAX_SIZE = 4096;
+  private static final ConcurrentHashMap<String, String> pool = new ConcurrentHashMap<>();
+
+  private StringPool() {
+    throw new UnsupportedOperationException("This is a utility class and cannot be instantiated");
+  }
+
+  public static String intern(String value) {
+    if (value == null) {
+      return null;
+    }
+    String pooled = pool.get(value);
+    if (pooled != null) {
+      return pooled;
+    }
+    // Checked without a lock so the pool can go a little over when threads race to fill it
+    if (pool.size() >= MAX_SIZE) {
+      return value;
+    }
+    pooled = pool.putIfAbsent(value, value);
+    return pooled == null ? value : pooled;
+  }
+
+  // Whether this exact string is the shared copy, rather than just equal to one
+  public static boolean isPooled(String value) {
+    return value != null && pool.get(value) == value;
+  }
+
+  public static int size() {
+    return pool.size();
+  }
+}
@@ -0,0 +1,196 @@
+package salon;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Buffers writes to any number of trees and applies them together at commit.
+ *
+ * <p>Nothing is written until commit, so a transaction that is abandoned or rolled back before
+ * then leaves no trace. Callers are expected to check everything that could fail while building
+ * the transaction. Commit then applies the writes in order, recording how to undo each one, and if
+ * one still throws the writes already applied are undone in reverse order before the exception is
+ * passed on.
+ *
+ * <p>Several updates to the same entity are merged, so a batch of bookings for one stylist
+ * re-indexes the stylist once rather than once per booking.
+ */
+class Transaction {
+  private final List<Step> steps = new ArrayList<>();
+  // Pending updates by entity so later changes to the same entity join the first update
+  private final Map<Object, Update<?, ?>> updates = new IdentityHashMap<>();
+  private boolean finished = false;
+
+  private interface Step {
+    void apply();
+
+    void undo();
+  }
+
+  private static final class Insert<K extends Comparable<? super K>, V extends HasPrimaryKey<K>>
+    implements Step {
+    private final RBTree<K, V> tree;
+    private final V value;
+
+    Insert(RBTree<K, V> tree, V value) {
+      this.tree = tree;
+      this.value = value;
+    }
+
+    @Override
+    public void apply() {
+      tree.add(value);
+    }
+
+    @Override
+    public void undo() {
+      tree.remove(value.getPrimaryKey());
+    }
+  }
+
+  private static final class Update<K extends Comparable<? super K>, V extends HasPrimaryKey<K>>
+    implements Step {
+    private final RBTree<K, V> tree;
+    private final V value;
+    private final List<Consumer<V>> changes = new ArrayList<>();
+    private final List<Consumer<V>> undos = new ArrayList<>();
+
+    Update(RBTree<K, V> tree, V value) {
+      this.tree = tree;
+      this.value = value;
+    }
+
+    @Override
+    public void apply() {
+      changes.forEach(change -> change.accept(value));
+      try {
+        tree.add(value);
+      } catch (RuntimeException e) {
+        // The step isn't counted as applied so put the value back as it was here, and add it again
+        // so any indexes the failed add had already moved are moved back
+        for (int i = undos.size() - 1; i >= 0; i--) {
+          undos.get(i).accept(value);
+        }
+        try {
+          tree.add(value);
+        } catch (RuntimeException undoFailure) {
+          e.addSuppressed(undoFailure);
+        }
+        throw e;
+      }
+    }
+
+    @Override
+    public void undo() {
+      for (int i = undos.size() - 1; i >= 0; i--) {
+        undos.get(i).accept(value);
+      }
+      tree.add(value);
+    }
+  }
+
+  /**
+   * Adds a new value to a tree on commit.
+   *
+   * @param tree the tree to add to
+   * @param value the new value, its key must not already be in the tree
+   */
+  public <K extends Comparable<? super K>, V extends HasPrimaryKey<K>> void insert(
+    RBTree<K, V> tree, V value) {
+    add(new Insert<>(tree, value));
+  }
+
+  /**
+   * Changes a value already in a tree in place on commit, then adds it again so the tree's indexes
+   * are updated.
+   *
+   * @param tree the tree holding the value
+   * @param value the value to change
+   * @param change the change to make
+   * @param undo reverses the change
+   */
+  @SuppressWarnings("unchecked")
+  public <K extends Comparable<? super K>, V extends HasPrimaryKey<K>> void update(
+    RBTree<K, V> tree, V value, Consumer<V> change, Consumer<V> undo) {
+    Update<K, V> update = (Update<K, V>) updates.get(value);
+    if (update == null) {
+      update = new Update<>(tree, value);
+      updates.put(value, update);
+      add(update);
+    }
+    update.changes.add(change);
+    update.undos.add(undo);
+  }
+
+  /**
+   * Runs an action on commit for changes to something other than a tree.
+   *
+   * @param action the change to make
+   * @param undo reverses the change
+   */
+  public void apply(Runnable action, Runnable undo) {
+    add(
+      new Step() {
+        @Override
+        public void apply() {
+          action.run();
+        }
+
+        @Override
+        public void undo() {
+          undo.run();
+        }
+      });
+  }
+
+  public int size() {
+    return steps.size();
+  }
+
+  // Apply every write, undoing the ones already applied if any of them fail
+  public void commit() {
+    finish();
+    Deque<Step> applied = new ArrayDeque<>();
+    try {
+      for (Step step : steps) {
+        step.apply();
+        applied.push(step);
+      }
+    } catch (RuntimeException e) {
+      while (!applied.isEmpty()) {
+        try {
+          applied.pop().undo();
+        } catch (RuntimeException undoFailure) {
+          e.addSuppressed(undoFailure);
+        }
+      }
+      throw e;
+    }
+  }
+
+  // Throw away the buffered writes, nothing has been written yet
+  public void rollback() {
+    finish();
+    steps.clear();
+    updates.clear();
+  }
+
+  private void add(Step step) {
+    if (finished) {
+      throw new IllegalStateException("The transaction has already been committed or rolled back");
+    }
+    steps.add(step);
+  }
+
+  private void finish() {
+    if (finished) {
+      throw new IllegalStateException("The transaction has already been committed or rolled back");
+    }
+    finished = true;
+  }
+}
@@ -0,0 +1,153 @@
+package salon;
+
+import java.lang.management.ManagementFactory;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder event for an operation on a tree, timed from start to finish with the bytes the
+ * thread allocated in between.
+ *
+ * <p>The events are off unless a recording turns them on, for example with
+ * {@code java -XX:StartFlightRecording:settings=src/salon/salon.jfc,filename=salon.jfr}. While
+ * they are off start and finish only check isEnabled, and as the event never leaves the method
+ * creating it the JIT removes the allocation as well.
+ */
+@Category({"Salon", "Trees"})
+@Enabled(false)
+@StackTrace(false)
+abstract class TreeEvent extends Event {
+  private static final com.sun.management.ThreadMXBean THREADS =
+    (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+  @Label("Tree")
+  String tree;
+
+  @Label("Allocated")
+  @Description("Bytes allocated by the thread during the operation")
+  @DataAmount
+  long allocated;
+
+  private transient long allocatedBefore;
+
+  public void start(String tree) {
+    if (isEnabled()) {
+      this.tree = tree;
+      allocatedBefore = THREADS.getCurrentThreadAllocatedBytes();
+      begin();
+    }
+  }
+
+  protected void complete() {
+    if (isEnabled()) {
+      end();
+      if (shouldCommit()) {
+        allocated = THREADS.getCurrentThreadAllocatedBytes() - allocatedBefore;
+        commit();
+      }
+    }
+  }
+}
+
+
+@Name("salon.TreeAdd")
+@Label("Tree Add")
+@Description("A value added to a tree, including updating its indexes")
+class TreeAddEvent extends TreeEvent {
+  @Label("Entries")
+  int entries;
+
+  @Label("Indexes")
+  @Description("Sorted and search indexes kept up to date by the add")
+  int indexes;
+
+  @Label("Update")
+  @Description("Whether the key was already in the tree")
+  boolean update;
+
+  public void finish(int entries, int indexes, boolean update) {
+    this.entries = entries;
+    this.indexes = indexes;
+    this.update = update;
+    complete();
+  }
+}
+
+
+@Name("salon.IndexUpdate")
+@Label("Index Update")
+@Description("An index entry moved or stored after a value was added")
+class IndexUpdateEvent extends TreeEvent {
+  @Label("Index")
+  String index;
+
+  @Label("Entries")
+  int entries;
+
+  @Label("Moved")
+  @Description("Whether the value's key changed so its entry had to move")
+  boolean moved;
+
+  public void finish(String index, int entries, boolean moved) {
+    this.index = index;
+    this.entries = entries;
+    this.moved = moved;
+    complete();
+  }
+}
+
+
+@Name("salon.Sort")
+@Label("Sort")
+@Description("An index built by sorting every entry of a tree")
+class SortEvent extends TreeEvent {
+  @Label("Entries")
+  int entries;
+
+  public void finish(int entries) {
+    this.entries = entries;
+    complete();
+  }
+}
+
+
+@Name("salon.Aggregate")
+@Label("Aggregate")
+@Description("Every entry of a tree grouped and accumulated")
+class AggregateEvent extends TreeEvent {
+  @Label("Entries")
+  int entries;
+
+  @Label("Groups")
+  int groups;
+
+  public void finish(int entries, int groups) {
+    this.entries = entries;
+    this.groups = groups;
+    complete();
+  }
+}
+
+
+@Name("salon.Filter")
+@Label("Filter")
+@Description("A tree copied with only the entries matching a condition")
+class FilterEvent extends TreeEvent {
+  @Label("Entries")
+  int entries;
+
+  @Label("Matches")
+  int matches;
+
+  public void finish(int entries, int matches) {
+    this.entries = entries;
+    this.matches = matches;
+    complete();
+  }
+}
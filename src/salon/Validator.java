@@ -1,7 +1,12 @@
 package salon;
 
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.Set;
 import java.util.function.Function;
+import java.util.function.IntFunction;
 import java.util.regex.Pattern;
 
 class ValidationException extends RuntimeException {
@@ -16,11 +21,11 @@ class ValidationException extends RuntimeException {
 public class Validator {
 
   // Validator for comma-separated values with an additional validator
+  // The array factory is needed because a generic array created as Object[] can't be cast to V[]
   public static <V> V[] validateCommaSeparatedString(
-    String input, Function<String, V> itemValidator) {
+    String input, Function<String, V> itemValidator, IntFunction<V[]> arrayFactory) {
     String[] items = input.split(",");
-    @SuppressWarnings("unchecked")
-    V[] results = (V[]) new Object[items.length];
+    V[] results = arrayFactory.apply(items.length);
     for (int i = 0; i < items.length; i++) {
       String trimmedItem = items[i].trim();
       V result = itemValidator.apply(trimmedItem);
@@ -55,6 +60,24 @@ public class Validator {
         : null;
   }
 
+  // Validator for checking a string is a date and time in the given format
+  public static LocalDateTime isValidDateTime(String input, DateTimeFormatter format) {
+    try {
+      return LocalDateTime.parse(input, format);
+    } catch (DateTimeParseException e) {
+      return null;
+    }
+  }
+
+  // Validator for checking a string is a date in the ISO yyyy-MM-dd format
+  public static LocalDate isValidDate(String input) {
+    try {
+      return LocalDate.parse(input);
+    } catch (DateTimeParseException e) {
+      return null;
+    }
+  }
+
   // Validator for checking if a string matches one of several allowed values
   public static <V> V validateAllowedValues(V input, Set<V> allowedValues) {
     return allowedValues.contains(input) ? input : null;
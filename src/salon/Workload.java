@@ -0,0 +1,425 @@
+package salon;
+
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Draws ranks from 1 to n where rank k comes up in proportion to 1 / k^exponent, so a few ranks
+ * take most of the draws.
+ *
+ * <p>Uses rejection inversion (Hörmann and Derflinger) which needs no table, so drawing from
+ * millions of ranks costs the same constant time and memory as drawing from ten.
+ */
+class ZipfSampler {
+  private final int n;
+  private final double exponent;
+  private final double hIntegralX1;
+  private final double hIntegralN;
+  private final double s;
+
+  ZipfSampler(int n, double exponent) {
+    if (n < 1 || exponent <= 0) {
+      throw new IllegalArgumentException("A Zipf distribution needs n >= 1 and exponent > 0");
+    }
+    this.n = n;
+    this.exponent = exponent;
+    hIntegralX1 = hIntegral(1.5) - 1;
+    hIntegralN = hIntegral(n + 0.5);
+    s = 2 - hIntegralInverse(hIntegral(2.5) - h(2));
+  }
+
+  public int sample(SplittableRandom random) {
+    while (true) {
+      double u = hIntegralN + random.nextDouble() * (hIntegralX1 - hIntegralN);
+      double x = hIntegralInverse(u);
+      int k = (int) Math.max(1, Math.min(n, (long) (x + 0.5)));
+      // Most draws are accepted by the first test without working out the integral again
+      if (k - x <= s || u >= hIntegral(k + 0.5) - h(k)) {
+        return k;
+      }
+    }
+  }
+
+  private double h(double x) {
+    return Math.exp(-exponent * Math.log(x));
+  }
+
+  private double hIntegral(double x) {
+    double logX = Math.log(x);
+    return helper2((1 - exponent) * logX) * logX;
+  }
+
+  private double hIntegralInverse(double x) {
+    double t = Math.max(-1, x * (1 - exponent));
+    return Math.exp(helper1(t) * x);
+  }
+
+  // log(1 + x) / x without losing precision near 0
+  private static double helper1(double x) {
+    return Math.abs(x) > 1e-8 ? Math.log1p(x) / x : 1 - x * (0.5 - x * (1.0 / 3 - 0.25 * x));
+  }
+
+  // (exp(x) - 1) / x without losing precision near 0
+  private static double helper2(double x) {
+    return Math.abs(x) > 1e-8 ? Math.expm1(x) / x : 1 + x * 0.5 * (1 + x / 3 * (1 + 0.25 * x));
+  }
+}
+
+
+// Latencies of one kind of operation, kept in full so the percentiles are exact
+class LatencyRecorder {
+  private final String name;
+  private long[] latencies = new long[1024];
+  private int count = 0;
+  private boolean sorted = true;
+
+  LatencyRecorder(String name) {
+    this.name = name;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public void record(long nanos) {
+    if (count == latencies.length) {
+      latencies = Arrays.copyOf(latencies, count * 2);
+    }
+    latencies[count++] = nanos;
+    sorted = false;
+  }
+
+  public int getCount() {
+    return count;
+  }
+
+  // The latency in nanoseconds that the given fraction of operations were at or under
+  public long percentile(double fraction) {
+    if (count == 0) {
+      return 0;
+    }
+    if (!sorted) {
+      Arrays.sort(latencies, 0, count);
+      sorted = true;
+    }
+    int rank = (int) Math.ceil(fraction * count);
+    return latencies[Math.max(0, Math.min(count, rank) - 1)];
+  }
+
+  public long max() {
+    return percentile(1);
+  }
+}
+
+
+/**
+ * Fills a SalonData with realistic looking data and replays a mix of reads and writes against it.
+ *
+ * <p>Everything is drawn from one seeded random so the same seed always gives the same data and
+ * the same operations. Client loyalty and service popularity follow Zipf distributions, so a few
+ * regulars make most of the bookings and a few services are in most of them. Each client mostly
+ * sees the same stylist. Bookings go in through addBookings in batches, each batch being one
+ * transaction, or one at a time through the booking queue, and are scheduled back to back through
+ * each stylist's working day so none clash.
+ */
+class Workload {
+  // Bookings added per transaction
+  private static final int BATCH_SIZE = 1000;
+  // How often a client books with their usual stylist
+  private static final double LOYALTY = 0.8;
+  private static final double SCHEDULED = 0.9;
+  // Mobile numbers are 07 followed by nine digits, the first of them not 0
+  private static final int PHONE_NUMBERS = 900_000_000;
+  private static final LocalDate FIRST_DAY = LocalDate.of(2024, 1, 1);
+  private static final LocalTime OPENING = LocalTime.of(9, 0);
+  private static final LocalTime CLOSING = LocalTime.of(18, 0);
+  private static final String[] FIRST_NAMES = {
+    "Oliver", "Amelia", "George", "Isla", "Harry", "Ava", "Noah", "Mia", "Jack", "Ivy", "Leo",
+    "Lily", "Arthur", "Freya", "Muhammad", "Grace", "Oscar", "Sophia", "Charlie", "Ella", "Jacob",
+    "Emily", "Thomas", "Poppy", "Henry", "Rosie", "William", "Evie", "Alfie", "Florence", "Joshua",
+    "Willow", "Freddie", "Isabella", "Archie", "Sienna", "Ethan", "Daisy", "Isaac", "Alice"
+  };
+  private static final String[] LAST_NAMES = {
+    "Smith", "Jones", "Taylor", "Brown", "Williams", "Wilson", "Johnson", "Davies", "Patel",
+    "Robinson", "Wright", "Thompson", "Evans", "Walker", "White", "Roberts", "Green", "Hall",
+    "Thomas", "Clarke", "Jackson", "Wood", "Harris", "Edwards", "Turner", "Martin", "Cooper",
+    "Hill", "Ward", "Hughes", "Moore", "Clark", "King", "Harrison", "Lewis", "Baker", "Lee",
+    "Allen", "Morris", "Khan"
+  };
+  // Name, price in pounds and minutes, in order of popularity
+  private static final Object[][] SERVICES = {
+    {"Cut and Finish", 45, 45}, {"Blow Dry", 30, 30}, {"Wash and Cut", 35, 30},
+    {"Root Colour", 60, 75}, {"Beard Trim", 15, 15}, {"Full Colour", 85, 120},
+    {"Highlights", 95, 120}, {"Fringe Trim", 10, 15}, {"Toner", 40, 30},
+    {"Treatment", 25, 20}, {"Balayage", 140, 180}, {"Perm", 90, 150}
+  };
+
+  private final SalonData salonData;
+  private final SplittableRandom random;
+
+  Workload(SalonData salonData, long seed) {
+    this.salonData = salonData;
+    this.random = new SplittableRandom(seed);
+  }
+
+  /**
+   * Adds services, stylists, clients and bookings. Existing data is left as it was: a service or
+   * stylist with a generated name, or a client with a generated phone number, that is already
+   * there is used as it is rather than updated. The bookings only use the records generated here.
+   *
+   * @param stylistCount the number of stylists to add
+   * @param clientCount the number of clients to add
+   * @param bookingCount the number of bookings to add
+   * @param queued whether to submit bookings one at a time through the booking queue rather than
+   *     adding them in batches
+   * @return the number of records of each type added, in the order they were added
+   */
+  public Map<String, Integer> generate(
+    int stylistCount, int clientCount, int bookingCount, boolean queued) {
+    // Records already there are reused, so what was added is how much the trees grew
+    int servicesBefore = salonData.serviceTree.getPrimaryStore().size();
+    int stylistsBefore = salonData.stylistTree.getPrimaryStore().size();
+    int clientsBefore = salonData.clientTree.getPrimaryStore().size();
+    List<Service> services = new ArrayList<>();
+    for (Object[] service : SERVICES) {
+      Service existing = salonData.findServiceByName((String) service[0]);
+      services.add(
+        existing != null
+          ? existing
+          : salonData.addService((String) service[0], (Integer) service[1], (Integer) service[2]));
+    }
+
+    List<Stylist> stylists = new ArrayList<>();
+    List<String> names = shuffledNames();
+    for (int i = 0; i < stylistCount; i++) {
+      // Names are unique as stylists are looked up by name, numbered once the pairs run out
+      String name = names.get(i % names.size());
+      if (i >= names.size()) {
+        name += " " + (i / names.size() + 1);
+      }
+      // Drawn either way so reusing a stylist doesn't change the rest of the data
+      String title = random.nextInt(4) == 0 ? "Senior Stylist" : "Stylist";
+      Stylist existing = salonData.findStylistByName(name);
+      stylists.add(existing != null ? existing : salonData.addStylist(name, title));
+    }
+
+    // Phone numbers are counted up from a seeded start so every client generated in a run has a
+    // different one, drawing them at random would give some clients the same number
+    int[] clientIds = new int[clientCount];
+    int firstPhone = random.nextInt(PHONE_NUMBERS);
+    for (int i = 0; i < clientCount; i++) {
+      String firstName = FIRST_NAMES[random.nextInt(FIRST_NAMES.length)];
+      String lastName = LAST_NAMES[random.nextInt(LAST_NAMES.length)];
+      String phone = "07" + (100_000_000 + (firstPhone + i) % PHONE_NUMBERS);
+      Client existing = salonData.findClientByPhone(phone);
+      clientIds[i] =
+        (existing != null ? existing : salonData.addClient(firstName, lastName, phone))
+          .getClientId();
+    }
+    // The most loyal clients are spread through the ids rather than being the first ones added
+    shuffle(clientIds);
+
+    ZipfSampler loyalty = new ZipfSampler(Math.max(1, clientCount), 1.0);
+    ZipfSampler popularity = new ZipfSampler(services.size(), 1.2);
+    // The next free time in each stylist's diary, after anything a stylist with the same name was
+    // booked for by an earlier run
+    LocalDateTime[] diaries = new LocalDateTime[stylistCount];
+    for (int i = 0; i < stylistCount; i++) {
+      LocalDateTime lastEnd = salonData.getSchedule(stylists.get(i).getStylistId()).lastEnd();
+      diaries[i] =
+        lastEnd == null || lastEnd.isBefore(FIRST_DAY.atTime(OPENING))
+          ? FIRST_DAY.atTime(OPENING)
+          : lastEnd;
+    }
+    List<BookingRequest> batch = new ArrayList<>(BATCH_SIZE);
+    AtomicInteger rejected = new AtomicInteger();
+    for (int i = 0; i < bookingCount && clientCount > 0 && stylistCount > 0; i++) {
+      int clientId = clientIds[loyalty.sample(random) - 1];
+      int stylist =
+        random.nextDouble() < LOYALTY
+          ? (int) Math.floorMod(PairCounter.mix(clientId), (long) stylistCount)
+          : random.nextInt(stylistCount);
+      Integer[] serviceIds = pickServices(services, popularity);
+      LocalDateTime startTime = null;
+      if (random.nextDouble() < SCHEDULED) {
+        startTime = nextSlot(diaries, stylist, salonData.calcTotalServicesDuration(serviceIds));
+      }
+      BookingRequest request =
+        new BookingRequest(clientId, stylists.get(stylist), startTime, serviceIds);
+      if (queued) {
+        salonData
+          .submitBooking(request)
+          .whenComplete(
+            (bookingId, failure) -> {
+              if (failure != null) {
+                rejected.incrementAndGet();
+              }
+            });
+        continue;
+      }
+      batch.add(request);
+      if (batch.size() == BATCH_SIZE) {
+        salonData.addBookings(batch);
+        batch.clear();
+      }
+    }
+    if (!batch.isEmpty()) {
+      salonData.addBookings(batch);
+    }
+    if (queued) {
+      salonData.getBookingQueue().sync();
+    }
+
+    Map<String, Integer> added = new LinkedHashMap<>();
+    added.put("services", salonData.serviceTree.getPrimaryStore().size() - servicesBefore);
+    added.put("stylists", salonData.stylistTree.getPrimaryStore().size() - stylistsBefore);
+    added.put("clients", salonData.clientTree.getPrimaryStore().size() - clientsBefore);
+    added.put(
+      "bookings", clientCount > 0 && stylistCount > 0 ? bookingCount - rejected.get() : 0);
+    return added;
+  }
+
+  /**
+   * Runs a stream of reads and writes against the data, timing each one.
+   *
+   * @param operations the number of operations to run
+   * @param writePercent the percentage of operations that write
+   * @return the latencies of each kind of operation
+   */
+  public List<LatencyRecorder> replay(int operations, int writePercent) {
+    int[] clientIds = new int[salonData.clientTree.getPrimaryStore().size()];
+    int i = 0;
+    for (Integer clientId : salonData.clientTree.getPrimaryStore().keySet()) {
+      clientIds[i++] = clientId;
+    }
+    List<Stylist> stylists = new ArrayList<>(salonData.stylistTree.getPrimaryStore().values());
+    List<Service> services = new ArrayList<>(salonData.serviceTree.getPrimaryStore().values());
+    if (clientIds.length == 0 || stylists.isEmpty() || services.isEmpty()) {
+      throw new IllegalStateException("There needs to be clients, stylists and services to replay");
+    }
+    shuffle(clientIds);
+    ZipfSampler loyalty = new ZipfSampler(clientIds.length, 1.0);
+    ZipfSampler popularity = new ZipfSampler(services.size(), 1.2);
+
+    Map<String, LatencyRecorder> recorders = new LinkedHashMap<>();
+    for (String name :
+      List.of(
+        "get-client",
+        "search-client",
+        "get-stylist",
+        "top-clients",
+        "revenue-range",
+        "client-allocations",
+        "add-booking",
+        "add-client")) {
+      recorders.put(name, new LatencyRecorder(name));
+    }
+    for (int operation = 0; operation < operations; operation++) {
+      // Draw everything the operation needs first so only the operation itself is timed
+      int clientId = clientIds[loyalty.sample(random) - 1];
+      Stylist stylist = stylists.get(random.nextInt(stylists.size()));
+      int roll = random.nextInt(100);
+      String name;
+      Runnable action;
+      if (roll < writePercent) {
+        if (random.nextInt(5) > 0) {
+          name = "add-booking";
+          Integer[] serviceIds = pickServices(services, popularity);
+          action = () -> salonData.addBooking(clientId, stylist, serviceIds);
+        } else {
+          name = "add-client";
+          String firstName = FIRST_NAMES[random.nextInt(FIRST_NAMES.length)];
+          String lastName = LAST_NAMES[random.nextInt(LAST_NAMES.length)];
+          String phone = "07" + (100_000_000 + random.nextInt(900_000_000));
+          action = () -> salonData.addClient(firstName, lastName, phone);
+        }
+      } else {
+        int read = random.nextInt(100);
+        if (read < 40) {
+          name = "get-client";
+          action = () -> salonData.clientTree.get(clientId);
+        } else if (read < 60) {
+          name = "search-client";
+          String text = LAST_NAMES[random.nextInt(LAST_NAMES.length)].substring(0, 3);
+          action = () -> salonData.searchClients(text, Salon.SEARCH_LIMIT);
+        } else if (read < 75) {
+          name = "get-stylist";
+          String stylistName = stylist.getStylistName();
+          action = () -> salonData.stylistTree.get(stylistName, "stylistNameIndex");
+        } else if (read < 85) {
+          name = "top-clients";
+          action = () -> salonData.topClientsByTotalSpend(10);
+        } else if (read < 95) {
+          name = "revenue-range";
+          LocalDate from = FIRST_DAY.plusDays(random.nextInt(60));
+          action = () -> salonData.calculateServiceRevenue(from, from.plusDays(7));
+        } else {
+          name = "client-allocations";
+          action = salonData::countStylistsClientsCompact;
+        }
+      }
+      long start = System.nanoTime();
+      action.run();
+      recorders.get(name).record(System.nanoTime() - start);
+    }
+    return new ArrayList<>(recorders.values());
+  }
+
+  // One to three different services, the popular ones more often
+  private Integer[] pickServices(List<Service> services, ZipfSampler popularity) {
+    int count = Math.min(services.size(), 1 + (random.nextInt(10) < 7 ? 0 : random.nextInt(3)));
+    List<Integer> serviceIds = new ArrayList<>(count);
+    while (serviceIds.size() < count) {
+      Integer serviceId = services.get(popularity.sample(random) - 1).getServiceId();
+      if (!serviceIds.contains(serviceId)) {
+        serviceIds.add(serviceId);
+      }
+    }
+    return serviceIds.toArray(new Integer[0]);
+  }
+
+  // Books the stylist's next free time, moving on to the next morning if it would run past closing
+  private static LocalDateTime nextSlot(LocalDateTime[] diaries, int stylist, Duration length) {
+    LocalDateTime start = diaries[stylist];
+    if (start.plus(length).toLocalTime().isAfter(CLOSING)
+      || !start.plus(length).toLocalDate().equals(start.toLocalDate())) {
+      start = start.toLocalDate().plusDays(1).atTime(OPENING);
+    }
+    // Round up to the next quarter hour for the next booking
+    long minutes = (length.toMinutes() + 14) / 15 * 15;
+    diaries[stylist] = start.plusMinutes(minutes);
+    return start;
+  }
+
+  private List<String> shuffledNames() {
+    List<String> names = new ArrayList<>();
+    for (String first : FIRST_NAMES) {
+      for (String last : LAST_NAMES) {
+        names.add(first + " " + last);
+      }
+    }
+    for (int i = names.size() - 1; i > 0; i--) {
+      int j = random.nextInt(i + 1);
+      names.set(j, names.set(i, names.get(j)));
+    }
+    return names;
+  }
+
+  private void shuffle(int[] values) {
+    for (int i = values.length - 1; i > 0; i--) {
+      int j = random.nextInt(i + 1);
+      int value = values[i];
+      values[i] = values[j];
+      values[j] = value;
+    }
+  }
+}